@@ -0,0 +1,41 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A sampled execution of the advice at a field access site.
+ *
+ * @author Danilo Ansaloni
+ */
+@Name("org.cocoaj.racer.AdviceExecution")
+@Label("Advice Execution")
+@Category("Racer")
+@Description("Time spent analyzing a sampled field access")
+@StackTrace(false)
+final class AdviceExecutionEvent extends jdk.jfr.Event {
+    @Label("Declaring Class")
+    String declaringClass;
+
+    @Label("Field")
+    String field;
+
+    @Label("Location")
+    String location;
+
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long time;
+}
@@ -0,0 +1,69 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer.jfr;
+
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.JoinPoint.StaticPart;
+import org.cocoaj.racer.TelemetrySink;
+
+/**
+ * A TelemetrySink that emits Java Flight Recorder events, so that the overhead of the
+ * analysis can be attributed to classes and fields with standard tooling.
+ * Usage: run the woven program on a JVM with Flight Recorder, with this folder compiled
+ * onto the class path and <code>-DRACER_TELEMETRY=org.cocoaj.racer.jfr.JfrTelemetry</code>.
+ * Until a recording is started, each event only costs the check whether it is enabled.
+ *
+ * @author Danilo Ansaloni
+ */
+public final class JfrTelemetry implements TelemetrySink {
+    public void adviceExecuted(StaticPart jpsp, long nanos) {
+        AdviceExecutionEvent event = new AdviceExecutionEvent();
+        if(event.shouldCommit()) {
+            Signature signature = jpsp.getSignature();
+            event.declaringClass = signature.getDeclaringTypeName();
+            event.field = signature.getName();
+            event.location = String.valueOf(jpsp.getSourceLocation());
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    public void stateChanged(Signature fieldSignature, String from, String to) {
+        StateTransitionEvent event = new StateTransitionEvent();
+        if(event.shouldCommit()) {
+            if(fieldSignature != null) {
+                event.declaringClass = fieldSignature.getDeclaringTypeName();
+                event.field = fieldSignature.getName();
+            }
+            event.from = from;
+            event.to = to;
+            event.commit();
+        }
+    }
+
+    public void stripeResized(int oldCapacity, int newCapacity, int size) {
+        StripeResizeEvent event = new StripeResizeEvent();
+        if(event.shouldCommit()) {
+            event.oldCapacity = oldCapacity;
+            event.newCapacity = newCapacity;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    public void raceReported(Signature fieldSignature, String report) {
+        RaceReportEvent event = new RaceReportEvent();
+        if(event.shouldCommit()) {
+            event.declaringClass = fieldSignature.getDeclaringTypeName();
+            event.field = fieldSignature.getName();
+            event.report = report;
+            event.commit();
+        }
+    }
+}
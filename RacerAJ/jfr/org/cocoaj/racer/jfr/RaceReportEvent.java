@@ -0,0 +1,34 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A reported race.
+ *
+ * @author Danilo Ansaloni
+ */
+@Name("org.cocoaj.racer.RaceReport")
+@Label("Race Report")
+@Category("Racer")
+@Description("A potential data race was reported")
+final class RaceReportEvent extends jdk.jfr.Event {
+    @Label("Declaring Class")
+    String declaringClass;
+
+    @Label("Field")
+    String field;
+
+    @Label("Report")
+    String report;
+}
@@ -0,0 +1,39 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A change of the state of the FSM of a field.
+ *
+ * @author Danilo Ansaloni
+ */
+@Name("org.cocoaj.racer.StateTransition")
+@Label("State Transition")
+@Category("Racer")
+@Description("The state machine of a field changed its state; no field for the state machine of a whole object")
+@StackTrace(false)
+final class StateTransitionEvent extends jdk.jfr.Event {
+    @Label("Declaring Class")
+    String declaringClass;
+
+    @Label("Field")
+    String field;
+
+    @Label("From")
+    String from;
+
+    @Label("To")
+    String to;
+}
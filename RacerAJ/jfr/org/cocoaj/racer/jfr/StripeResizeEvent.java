@@ -0,0 +1,35 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The growth of a stripe of the map from field owners to their states.
+ *
+ * @author Danilo Ansaloni
+ */
+@Name("org.cocoaj.racer.StripeResize")
+@Label("Stripe Resize")
+@Category("Racer")
+@Description("A stripe of the map from field owners to their states has grown")
+final class StripeResizeEvent extends jdk.jfr.Event {
+    @Label("Old Capacity")
+    int oldCapacity;
+
+    @Label("New Capacity")
+    int newCapacity;
+
+    @Label("Size")
+    @Description("Entries left after dropping the reclaimed owners")
+    int size;
+}
@@ -0,0 +1,69 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer.junit;
+
+import java.util.List;
+
+import org.cocoaj.racer.RaceScope;
+import org.cocoaj.racer.RacerSwitch;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+/**
+ * A JUnit 5 extension that runs each test in its own scope of the Racer analysis
+ * and fails the test if a race is attributed to it.
+ * Races are attributed to a test if they are found by the thread running the test
+ * or by a thread started from it (see RaceScope).
+ * Before a test, the analysis starts a new generation, so that the field states
+ * of previous tests are discarded. If tests run in parallel, the state is only
+ * discarded when no other test is running, since those tests still depend on it.
+ * A race is then still reported to each test that finds it on its own objects, since
+ * races are reported once per test; only a race on an object that another running
+ * test has already reported, e.g. on a static field, is attributed to that test alone.
+ * Usage: annotate a test class with
+ * <code>@ExtendWith(RacerExtension.class)</code>, and weave the code under test
+ * with the Racer aspect.
+ *
+ * @author Danilo Ansaloni
+ */
+public final class RacerExtension implements BeforeEachCallback, AfterEachCallback {
+    private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(RacerExtension.class);
+
+    /**
+     * The number of tests currently running; protected by the RacerExtension class
+     */
+    private static int running;
+
+    public void beforeEach(ExtensionContext context) {
+        synchronized(RacerExtension.class) {
+            if(running++ == 0) {
+                RacerSwitch.newGeneration();
+            }
+        }
+        context.getStore(NAMESPACE).put(RaceScope.class, RaceScope.begin(context.getUniqueId()));
+    }
+
+    public void afterEach(ExtensionContext context) {
+        RaceScope scope = context.getStore(NAMESPACE).remove(RaceScope.class, RaceScope.class);
+        RaceScope.end(scope);
+        synchronized(RacerExtension.class) {
+            running--;
+        }
+        List<String> races = scope.races();
+        if(!races.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            message.append(races.size()).append(" race condition(s) found in ").append(context.getDisplayName());
+            for(String race : races) {
+                message.append("\n--------------------------\n").append(race);
+            }
+            throw new AssertionError(message.toString());
+        }
+    }
+}
@@ -11,48 +11,68 @@ package ca.mcgill.sable.racer;
 import org.aspectj.lang.reflect.SourceLocation;
 
 /**
- * A record of a field access.
+ * A record of a field access: the id of its source location (see {@link SourceLocations})
+ * and its kind. Hash code and fingerprint are computed once, so comparing records
+ * never touches the location itself.
  * 
  * @author Eric Bodden
  */
 public abstract class AbstractAccessRecord {
 		
 	/**
-	 * The source location at which the access took place.
+	 * The id of the source location at which the access took place.
 	 */
-	protected SourceLocation accessLocation;
+	protected final int locationId;
 
-	public AbstractAccessRecord(SourceLocation accessLocation) {
-		this.accessLocation = accessLocation;
+	/**
+	 * Distinguishes reads from writes at the same location.
+	 */
+	protected final int kind;
+
+	protected final int hash;
+
+	/**
+	 * A 64-bit hash of location and kind, used to identify histories (see {@link History}).
+	 */
+	protected final long fingerprint;
+
+	public AbstractAccessRecord(SourceLocation accessLocation, int kind) {
+		this(SourceLocations.idOf(accessLocation), kind);
+	}
+
+	protected AbstractAccessRecord(int locationId, int kind) {
+		this.locationId = locationId;
+		this.kind = kind;
+		this.hash = locationId*2 + kind;
+		//finalizer of the SplitMix64 generator
+		long z = hash + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		this.fingerprint = z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns the source location at which the access took place.
+	 */
+	public SourceLocation getAccessLocation() {
+		return SourceLocations.locationOf(locationId);
 	}
 
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime
-				* result
-				+ ((accessLocation == null) ? 0 : accessLocation.toString().hashCode());
-		return result;
+		return hash;
 	}
 
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
-		if (obj == null)
-			return false;
-		if (getClass() != obj.getClass())
+		if (!(obj instanceof AbstractAccessRecord))
 			return false;
 		final AbstractAccessRecord other = (AbstractAccessRecord) obj;
-		if (accessLocation == null) {
-			if (other.accessLocation != null)
-				return false;
-		} else if (!accessLocation.toString().equals(other.accessLocation.toString()))
-			return false;
-		return true;
+		return locationId==other.locationId && kind==other.kind;
 	}
 	
 	public String toString() {
-		return getClass().getName() + " at "+accessLocation;
+		return getClass().getName() + " at "+getAccessLocation();
 	}
 	
 }
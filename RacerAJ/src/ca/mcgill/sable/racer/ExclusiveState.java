@@ -17,19 +17,19 @@ package ca.mcgill.sable.racer;
 public class ExclusiveState extends State {
 
 	/**
-	 * The parameter thread t. 
+	 * The id of the parameter thread t. 
 	 */
-	protected final Thread t;
+	protected final int t;
 	protected final int accessRegion;
 
 	/**
-	 * @param t the parameter thread
+	 * @param t the id of the parameter thread
 	 * @param accessRegion 
-	 * @param predecessorState the predecessor state
+	 * @param history the access history
+	 * @param locks the lockset
 	 */
-	public ExclusiveState(Thread t, int accessRegion, State predecessorState, boolean flushHistory) {
-		super(predecessorState);
-		if(flushHistory) accessHistory.clear();
+	public ExclusiveState(int t, int accessRegion, History history, LockSet locks) {
+		super(history, locks);
 		this.t = t;
 		this.accessRegion = accessRegion;
 	}
@@ -37,37 +37,41 @@ public class ExclusiveState extends State {
 	/**
 	 * {@inheritDoc}
 	 */
-	protected State newStateOnRead(Thread t,int accessRegion) {
+	protected State newStateOnRead(int t,int accessRegion) {
 		if(t==this.t) {
 			return this;
 		} else if (Racer.aspectOf().canSee(t,accessRegion,this.t,this.accessRegion)) {
-			State s = new ExclusiveState(t,accessRegion,this,true);
-			s.locks.clear();
-			s.locks.add(FULLSET_MARKER);
-			return s;			
+			return new ExclusiveState(t,accessRegion,History.EMPTY,LockSet.FULL);
 		} else {
-			return new SharedState(this);
+			return new SharedState(accessHistory,locks);
 		}		
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
-	protected State newStateOnWrite(Thread t,int accessRegion) {
+	protected State newStateOnWrite(int t,int accessRegion) {
 		if(t==this.t) {
-			return new ModifiedState(t,accessRegion,this,false);
+			return new ModifiedState(t,accessRegion,accessHistory,locks);
 		} else if (Racer.aspectOf().canSee(t,accessRegion,this.t,this.accessRegion)) {
-			return new ModifiedState(t,accessRegion,this,true);
+			return new ModifiedState(t,accessRegion,History.EMPTY,locks);
 		} else {
-			return new SharedModifiedState(this);
+			return new SharedModifiedState(accessHistory,locks);
 		}		
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	protected State copy(History history, LockSet locks) {
+		return new ExclusiveState(t,accessRegion,history,locks);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public String toString() {
-		return "exclusive "+t.getName();
+		return "exclusive thread #"+t;
 	}
 	
 
@@ -0,0 +1,155 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008 Eric Bodden
+ */
+
+package ca.mcgill.sable.racer;
+
+/**
+ * The bag of locks currently held by a thread. Locks are compared by identity
+ * and stored in two parallel arrays, one holding the distinct locks and one holding
+ * how often each lock was entered. Acquiring and releasing a lock therefore does
+ * not allocate, unless a thread holds more distinct locks than ever before.
+ * In addition, this class caches an immutable {@link LockSet} snapshot of its
+ * contents that is shared by all fields accessed while the thread holds the same locks.
+ * Instances are confined to a single thread.
+ *
+ * @author Eric Bodden
+ */
+public final class HeldLocks {
+
+	private final static int INITIAL_CAPACITY = 4;
+
+	/**
+	 * The distinct locks held; only the first {@link #size} entries are used.
+	 */
+	protected Object[] locks = new Object[INITIAL_CAPACITY];
+
+	/**
+	 * The reentrancy count of each lock in {@link #locks}.
+	 */
+	protected int[] counts = new int[INITIAL_CAPACITY];
+
+	/**
+	 * The number of distinct locks held.
+	 */
+	protected int size;
+
+	/**
+	 * Snapshot of the current contents; <code>null</code> if it has to be recomputed.
+	 */
+	protected LockSet snapshot = LockSet.EMPTY;
+
+	/**
+	 * Adds <i>lock</i> to the bag.
+	 * @param lock the lock that was acquired
+	 */
+	public void add(Object lock) {
+		//search from the top, as reentered locks were usually acquired recently
+		for (int i = size-1; i >= 0; i--) {
+			if(locks[i]==lock) {
+				counts[i]++;
+				return;
+			}
+		}
+		if(size==locks.length) {
+			grow();
+		}
+		locks[size] = lock;
+		counts[size] = 1;
+		size++;
+		snapshot = null;
+	}
+
+	/**
+	 * Removes one occurrence of <i>lock</i> from the bag.
+	 * @param lock the lock that was released
+	 * @return false if the lock was not held
+	 */
+	public boolean remove(Object lock) {
+		for (int i = size-1; i >= 0; i--) {
+			if(locks[i]==lock) {
+				if(--counts[i]==0) {
+					//move the last lock into the free slot
+					size--;
+					locks[i] = locks[size];
+					counts[i] = counts[size];
+					locks[size] = null;
+					snapshot = null;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void grow() {
+		Object[] newLocks = new Object[locks.length*2];
+		int[] newCounts = new int[counts.length*2];
+		System.arraycopy(locks, 0, newLocks, 0, size);
+		System.arraycopy(counts, 0, newCounts, 0, size);
+		locks = newLocks;
+		counts = newCounts;
+	}
+
+	/**
+	 * Returns true if <i>lock</i> is held at least once.
+	 */
+	public boolean contains(Object lock) {
+		for (int i = size-1; i >= 0; i--) {
+			if(locks[i]==lock) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns how often <i>lock</i> is held.
+	 */
+	public int countOf(Object lock) {
+		for (int i = size-1; i >= 0; i--) {
+			if(locks[i]==lock) {
+				return counts[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of distinct locks held.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Returns the set of locks held, computing it only if the set of distinct
+	 * locks changed since the last call.
+	 */
+	public LockSet toLockSet() {
+		LockSet lockSet = snapshot;
+		if(lockSet==null) {
+			snapshot = lockSet = LockSet.of(locks, size);
+		}
+		return lockSet;
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer("[");
+		for (int i = 0; i < size; i++) {
+			if(i>0) buffer.append(", ");
+			buffer.append(locks[i]);
+			if(counts[i]>1) buffer.append(" x").append(counts[i]);
+		}
+		return buffer.append("]").toString();
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008 Eric Bodden
+ */
+
+package ca.mcgill.sable.racer;
+
+/**
+ * An immutable access history. Each history is a persistent linked list
+ * that shares its tail with the history it was derived from, so adding a
+ * record allocates a single node no matter how long the history is.
+ * Like the {@link java.util.LinkedHashSet} it replaces, a history contains
+ * each record at most once and remembers the order of insertion.
+ *
+ * @author Eric Bodden
+ */
+public final class History {
+
+	/**
+	 * The empty history.
+	 */
+	public final static History EMPTY = new History(null, null);
+
+	/**
+	 * The most recently added record; <code>null</code> for the empty history.
+	 */
+	protected final AbstractAccessRecord record;
+
+	/**
+	 * The history before {@link #record} was added.
+	 */
+	protected final History previous;
+
+	/**
+	 * The number of records in this history.
+	 */
+	protected final int size;
+
+	/**
+	 * The sum of the hash codes of all records, as defined by {@link java.util.Set#hashCode()}.
+	 */
+	protected final int hash;
+
+	/**
+	 * The sum of the fingerprints of all records. Like {@link #hash}, it does not
+	 * depend on the order of insertion, but it is wide enough to tell apart the
+	 * histories of a program in practice.
+	 */
+	protected final long fingerprint;
+
+	private History(AbstractAccessRecord record, History previous) {
+		this.record = record;
+		this.previous = previous;
+		if(previous==null) {
+			this.size = 0;
+			this.hash = 0;
+			this.fingerprint = 0;
+		} else {
+			this.size = previous.size + 1;
+			this.hash = previous.hash + record.hashCode();
+			this.fingerprint = previous.fingerprint + record.fingerprint;
+		}
+	}
+
+	/**
+	 * Returns a history that contains all records of this history plus <i>r</i>.
+	 * @param r any access record
+	 * @return this history if it already contains <i>r</i>, a new history otherwise
+	 */
+	public History add(AbstractAccessRecord r) {
+		if(contains(r)) {
+			return this;
+		}
+		return new History(r, this);
+	}
+
+	/**
+	 * Returns true if this history contains a record equal to <i>o</i>.
+	 */
+	public boolean contains(Object o) {
+		for(History h = this; h.previous!=null; h = h.previous) {
+			if(h.record.equals(o)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Returns the records of this history in the order in which they were added.
+	 */
+	public AbstractAccessRecord[] toArray() {
+		AbstractAccessRecord[] records = new AbstractAccessRecord[size];
+		int i = size;
+		for(History h = this; h.previous!=null; h = h.previous) {
+			records[--i] = h.record;
+		}
+		return records;
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Returns the sum of the fingerprints of all records.
+	 */
+	public long fingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Two histories are equal if they contain the same records, regardless of order.
+	 */
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		final History other = (History) obj;
+		if (size != other.size || hash != other.hash || fingerprint != other.fingerprint)
+			return false;
+		for(History h = this; h.previous!=null; h = h.previous) {
+			if(!other.contains(h.record)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer("[");
+		AbstractAccessRecord[] records = toArray();
+		for (int i = 0; i < records.length; i++) {
+			if(i>0) buffer.append(", ");
+			buffer.append(records[i]);
+		}
+		return buffer.append("]").toString();
+	}
+
+}
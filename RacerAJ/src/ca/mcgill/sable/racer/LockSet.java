@@ -0,0 +1,130 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008 Eric Bodden
+ */
+
+package ca.mcgill.sable.racer;
+
+/**
+ * An immutable set of locks, compared by identity. Lock sets are never modified in
+ * place: an intersection returns one of its operands whenever possible and only
+ * allocates when the result is a new, strictly smaller set. Because a field's lock
+ * set can only shrink, each field allocates at most as many lock sets as it held
+ * locks initially.
+ *
+ * @author Eric Bodden
+ */
+public final class LockSet {
+
+	/**
+	 * The full set of locks, i.e. the neutral element of {@link #intersect(LockSet)}.
+	 */
+	public final static LockSet FULL = new LockSet(null);
+
+	/**
+	 * The empty set of locks.
+	 */
+	public final static LockSet EMPTY = new LockSet(new Object[0]);
+
+	/**
+	 * The locks in this set, each contained once; <code>null</code> for {@link #FULL}.
+	 */
+	protected final Object[] locks;
+
+	private LockSet(Object[] locks) {
+		this.locks = locks;
+	}
+
+	/**
+	 * Creates the lock set holding the first <i>size</i> locks of the given array.
+	 * @param locks distinct locks
+	 * @param size the number of locks to copy
+	 */
+	public static LockSet of(Object[] locks, int size) {
+		if(size==0) {
+			return EMPTY;
+		}
+		Object[] copy = new Object[size];
+		System.arraycopy(locks, 0, copy, 0, size);
+		return new LockSet(copy);
+	}
+
+	/**
+	 * Intersects this lock set with the locks currently held by a thread.
+	 * Since threads rarely hold more than a few locks, this simply scans
+	 * the held locks for each lock in this set.
+	 * @param held the locks held by the accessing thread
+	 * @return this set if it is contained in <i>held</i>, the snapshot of <i>held</i> if
+	 * that is contained in this set, {@link #EMPTY} if both are disjoint and a new set otherwise
+	 */
+	public LockSet intersect(HeldLocks held) {
+		if(this==FULL) {
+			return held.toLockSet();
+		}
+		if(locks.length==0) {
+			return this;
+		}
+		if(locks.length==1) {
+			//the common case of a field protected by a single lock
+			return held.contains(locks[0]) ? this : EMPTY;
+		}
+		int retained = 0;
+		for (int i = 0; i < locks.length; i++) {
+			if(held.contains(locks[i])) {
+				retained++;
+			}
+		}
+		if(retained==locks.length) {
+			return this;
+		}
+		if(retained==0) {
+			return EMPTY;
+		}
+		if(retained==held.size()) {
+			return held.toLockSet();
+		}
+		Object[] newLocks = new Object[retained];
+		int j = 0;
+		for (int i = 0; i < locks.length; i++) {
+			if(held.contains(locks[i])) {
+				newLocks[j++] = locks[i];
+			}
+		}
+		return new LockSet(newLocks);
+	}
+
+	/**
+	 * Returns true if this set contains <i>lock</i>.
+	 */
+	public boolean contains(Object lock) {
+		if(this==FULL) {
+			return true;
+		}
+		for (int i = 0; i < locks.length; i++) {
+			if(locks[i]==lock) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return locks!=null && locks.length==0;
+	}
+
+	public String toString() {
+		if(this==FULL) {
+			return "all locks";
+		}
+		StringBuffer buffer = new StringBuffer("[");
+		for (int i = 0; i < locks.length; i++) {
+			if(i>0) buffer.append(", ");
+			buffer.append(locks[i]);
+		}
+		return buffer.append("]").toString();
+	}
+
+}
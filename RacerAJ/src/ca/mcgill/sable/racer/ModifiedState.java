@@ -19,19 +19,19 @@ package ca.mcgill.sable.racer;
 public class ModifiedState extends State {
 
 	/**
-	 * The thread that accessed the field to which this state belongs. 
+	 * The id of the thread that accessed the field to which this state belongs. 
 	 */
-	protected final Thread t;
+	protected final int t;
 	protected final int accessRegion;
 
 	/**
-	 * @param t the parameter thread
+	 * @param t the id of the parameter thread
 	 * @param accessRegion 
-	 * @param predecessorState the predecessor state
+	 * @param history the access history
+	 * @param locks the lockset
 	 */
-	public ModifiedState(Thread t, int accessRegion, State predecessorState,boolean flushHistory) {
-		super(predecessorState);
-		if(flushHistory) accessHistory.clear();
+	public ModifiedState(int t, int accessRegion, History history, LockSet locks) {
+		super(history, locks);
 		this.t = t;
 		this.accessRegion = accessRegion;
 	}
@@ -39,35 +39,39 @@ public class ModifiedState extends State {
 	/**
 	 * {@inheritDoc}
 	 */
-	protected State newStateOnRead(Thread t,int accessRegion) {
+	protected State newStateOnRead(int t,int accessRegion) {
 		if(t==this.t) {
 			return this;
 		} else if (Racer.aspectOf().canSee(t,accessRegion,this.t,this.accessRegion)) {
-			State s = new ExclusiveState(t,accessRegion,this,true);
-			s.locks.clear();
-			s.locks.add(FULLSET_MARKER);
-			return s;
+			return new ExclusiveState(t,accessRegion,History.EMPTY,LockSet.FULL);
 		} else {
-			return new SharedModifiedState(this);
+			return new SharedModifiedState(accessHistory,locks);
 		}		
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
-	protected State newStateOnWrite(Thread t,int accessRegion) {
+	protected State newStateOnWrite(int t,int accessRegion) {
 		if(t==this.t||Racer.aspectOf().canSee(t,accessRegion,this.t,this.accessRegion)) {
 			return this;
 		} else {
-			return new SharedModifiedState(this);
+			return new SharedModifiedState(accessHistory,locks);
 		}		
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	protected State copy(History history, LockSet locks) {
+		return new ModifiedState(t,accessRegion,history,locks);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public String toString() {
-		return "modified "+t.getName();
+		return "modified thread #"+t;
 	}
 	
 }
@@ -8,9 +8,6 @@
 
 package ca.mcgill.sable.racer;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-
 /**
  * Record of a data race.
  *
@@ -18,13 +15,26 @@ import java.util.LinkedHashSet;
  */
 public class Race {
 	
-	protected LinkedHashSet accessHistory;
+	protected final History accessHistory;
 	
-	protected String fieldSignature;
+	protected final String fieldSignature;
+
+	/**
+	 * The hash code, computed once from the hash of the history,
+	 * which itself is maintained incrementally.
+	 */
+	protected final int hash;
 
-	public Race(LinkedHashSet accessHistory, String fieldSignature) {
+	public Race(History accessHistory, String fieldSignature) {
 		this.accessHistory = accessHistory;
 		this.fieldSignature = fieldSignature;
+		final int prime = 31;
+		int result = 1;
+		result = prime * result
+				+ ((accessHistory == null) ? 0 : accessHistory.hashCode());
+		result = prime * result
+				+ ((fieldSignature == null) ? 0 : fieldSignature.hashCode());
+		this.hash = result;
 	}
 	
 	public void report(Object fieldOwner) {
@@ -33,23 +43,23 @@ public class Race {
 		System.err.println("Field '"+fieldSignature+"' is accessed unprotected.");
 		System.err.println("Owner object: "+System.identityHashCode(fieldOwner));
 		System.err.println("==========================\n");
-		for (Iterator iter = accessHistory.iterator(); iter.hasNext();) {
-			AbstractAccessRecord record = (AbstractAccessRecord) iter.next();
-			System.err.println(record);
+		AbstractAccessRecord[] records = accessHistory.toArray();
+		for (int i = 0; i < records.length; i++) {
+			System.err.println(records[i]);
 		}
 		System.err.println("\n--------------------------\n");
 	}
 
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-				+ ((accessHistory == null) ? 0 : accessHistory.hashCode());
-		result = prime * result
-				+ ((fieldSignature == null) ? 0 : fieldSignature.hashCode());
-		return result;
+		return hash;
 	}
 
+	/**
+	 * Two races are equal if they concern the same field and their histories have
+	 * the same size and fingerprint. This avoids comparing the histories record by
+	 * record; should two different histories ever collide, the only effect is that
+	 * the second race is not reported (see SharedModifiedState).
+	 */
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
@@ -58,10 +68,14 @@ public class Race {
 		if (getClass() != obj.getClass())
 			return false;
 		Race other = (Race) obj;
+		if (hash != other.hash)
+			return false;
 		if (accessHistory == null) {
 			if (other.accessHistory != null)
 				return false;
-		} else if (!accessHistory.equals(other.accessHistory))
+		} else if (other.accessHistory == null
+				|| accessHistory.size() != other.accessHistory.size()
+				|| accessHistory.fingerprint() != other.accessHistory.fingerprint())
 			return false;
 		if (fieldSignature == null) {
 			if (other.fieldSignature != null)
@@ -17,8 +17,21 @@ import org.aspectj.lang.reflect.SourceLocation;
  */
 public class Read extends AbstractAccessRecord {
 
+	/**
+	 * The kind of all reading records.
+	 */
+	public final static int KIND = 0;
+
 	public Read(SourceLocation accessLocation) {
-		super(accessLocation);
+		super(accessLocation, KIND);
+	}
+
+	/**
+	 * Creates the record of a reading access at the location with the given id;
+	 * use {@link SourceLocations#read(SourceLocation)} to obtain the shared instance.
+	 */
+	Read(int locationId) {
+		super(locationId, KIND);
 	}
 
 }
@@ -29,32 +29,40 @@ public class SharedModifiedState extends State {
 	protected static Set reportedRaces = new HashSet();
 	
 	/**
-	 * @param predecessorState the predecessor state
+	 * @param history the access history
+	 * @param locks the lockset
 	 */
-	public SharedModifiedState(State predecessorState) {
-		super(predecessorState);
+	public SharedModifiedState(History history, LockSet locks) {
+		super(history, locks);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
-	protected void processRead(Thread t, Object owner, String id, SourceLocation loc) {
-		reportRace();
+	protected void processRead(int t, Object owner, String id, SourceLocation loc) {
+		reportRace(owner,id);
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
-	protected void processWrite(Thread t, Object owner, String id, SourceLocation loc) {
-		reportRace();
+	protected void processWrite(int t, Object owner, String id, SourceLocation loc) {
+		reportRace(owner,id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected State copy(History history, LockSet locks) {
+		return new SharedModifiedState(history,locks);
 	}
 	
-	private void reportRace() {
+	private void reportRace(Object owner, String id) {
 		if(locks.isEmpty()) {
-			Race race = new Race(accessHistory,fieldSignature);
+			Race race = new Race(accessHistory,id);
 			synchronized (reportedRaces) {
 				if(!reportedRaces.contains(race)) {
-					race.report(fieldOwnerRef.get());
+					race.report(owner);
 					reportedRaces.add(race);
 				}
 			}
@@ -17,14 +17,22 @@ package ca.mcgill.sable.racer;
 public class SharedState extends State {
 
 	/**
-	 * @param predecessorState the predecessor state
+	 * @param history the access history
+	 * @param locks the lockset
 	 */
-	public SharedState(State predecessorState) {
-		super(predecessorState);
+	public SharedState(History history, LockSet locks) {
+		super(history, locks);
 	}
 	
-	protected State newStateOnWrite(Thread t,int accessRegion) {
-		return new SharedModifiedState(this);
+	protected State newStateOnWrite(int t,int accessRegion) {
+		return new SharedModifiedState(accessHistory,locks);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected State copy(History history, LockSet locks) {
+		return new SharedState(history,locks);
 	}
 	
 	/**
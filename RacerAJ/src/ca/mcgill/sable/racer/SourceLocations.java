@@ -0,0 +1,120 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008 Eric Bodden
+ */
+
+package ca.mcgill.sable.racer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aspectj.lang.reflect.SourceLocation;
+
+/**
+ * Interns source locations into a table indexed by small integer ids.
+ * Locations are first looked up by the location object, as each join point shadow
+ * always passes the same {@link SourceLocation} object (which does not override
+ * <code>equals</code>); only new objects are compared by their string representation.
+ * For every location, this class also holds the single {@link Read} and {@link Write}
+ * record for accesses at that location, so recording an access does not allocate.
+ * Known locations are looked up without locking; only interning a new location
+ * takes the monitor of the SourceLocations class, which protects the other tables.
+ *
+ * @author Eric Bodden
+ */
+public final class SourceLocations {
+
+	/**
+	 * The id and the records of a location.
+	 */
+	private static final class Entry {
+		final int id;
+		final Read read;
+		final Write write;
+
+		Entry(int id) {
+			this.id = id;
+			this.read = new Read(id);
+			this.write = new Write(id);
+		}
+	}
+
+	/**
+	 * The key of a missing location, which the concurrent map cannot hold
+	 */
+	private final static Object UNKNOWN = new Object();
+
+	/**
+	 * A mapping from each location object seen so far to its entry.
+	 */
+	private final static Map entriesByLocation = new ConcurrentHashMap();
+
+	/**
+	 * A mapping from the string representation of each location to its entry.
+	 */
+	private final static Map entriesByName = new HashMap();
+
+	/**
+	 * The location of each id.
+	 */
+	private final static List locations = new ArrayList();
+
+	private SourceLocations() {}
+
+	/**
+	 * Returns the id of <i>loc</i>, allocating one if necessary.
+	 * Locations with the same string representation share their id.
+	 */
+	public static int idOf(SourceLocation loc) {
+		return entryOf(loc).id;
+	}
+
+	/**
+	 * Returns the location with the given id.
+	 */
+	public static synchronized SourceLocation locationOf(int id) {
+		return (SourceLocation)locations.get(id);
+	}
+
+	/**
+	 * Returns the record of a read at <i>loc</i>.
+	 */
+	public static Read read(SourceLocation loc) {
+		return entryOf(loc).read;
+	}
+
+	/**
+	 * Returns the record of a write at <i>loc</i>.
+	 */
+	public static Write write(SourceLocation loc) {
+		return entryOf(loc).write;
+	}
+
+	private static Entry entryOf(SourceLocation loc) {
+		Entry entry = (Entry)entriesByLocation.get(loc==null ? UNKNOWN : loc);
+		return entry!=null ? entry : intern(loc);
+	}
+
+	private static synchronized Entry intern(SourceLocation loc) {
+		Object key = loc==null ? UNKNOWN : loc;
+		Entry entry = (Entry)entriesByLocation.get(key);
+		if(entry==null) {
+			String name = String.valueOf(loc);
+			entry = (Entry)entriesByName.get(name);
+			if(entry==null) {
+				entry = new Entry(locations.size());
+				entriesByName.put(name, entry);
+				locations.add(loc);
+			}
+			entriesByLocation.put(key, entry);
+		}
+		return entry;
+	}
+
+}
@@ -2,135 +2,94 @@
  * This code is made available under version 3 of the
  * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
  * distribution for details.
- * 
+ *
  * Copyright 2008 Eric Bodden
  */
 
 package ca.mcgill.sable.racer;
 
-import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
-
 import org.aspectj.lang.reflect.SourceLocation;
 
 /**
  * An abstract automaton state.
+ * States are immutable. A transition returns the current state if nothing changed
+ * and otherwise a new state that shares the history and lockset of its predecessor.
+ * Transitions have no side effects; the caller invokes {@link #processRead} or
+ * {@link #processWrite} on the new state once it has been installed.
  *
  * @author Eric Bodden
  */
-public abstract class State implements Cloneable {
-	
-	
-	/**
-	 * Marker for the full set of locks.
-	 */
-	public final static Object FULLSET_MARKER = new Object() {
-		public String toString() { return "all locks"; }
-	};
-	
-	/**
-	 * Weak reference to the owner of the field that owns this state.
-	 */
-	protected final WeakReference fieldOwnerRef;
-	
-	/**
-	 * Signature of the field that owns this state. 
-	 */
-	protected final String fieldSignature;
-	
+public abstract class State {
+
 	/**
-	 * The access history for this field. Shared and protected by itself.
+	 * The access history for this field.
 	 */
-	protected final LinkedHashSet accessHistory;
-	
+	protected final History accessHistory;
+
 	/**
-	 * The lockset for this field. Shared and protected by itself.
+	 * The lockset for this field.
 	 */
-	protected final HashSet locks;
-	
-	public State(State predecessorState) {
-		this(
-			predecessorState.fieldOwnerRef.get(),
-			predecessorState.fieldSignature,
-			new LinkedHashSet(predecessorState.accessHistory),
-			new HashSet(predecessorState.locks)
-		);
-	}
-	
-	public State(Object fieldOwner, String fieldSignature,LinkedHashSet history, HashSet locks) {
-		this.fieldOwnerRef = new WeakReference(fieldOwner);
-		this.fieldSignature = fieldSignature;
+	protected final LockSet locks;
+
+	public State(History history, LockSet locks) {
 		this.accessHistory = history;
 		this.locks = locks;
 	}
 
-	private void registerRead(SourceLocation loc) {
-		synchronized (accessHistory) {
-			accessHistory.add(new Read(loc));
-		}
-	}
-
-	private void registerWrite(SourceLocation loc) {
-		synchronized (accessHistory) {
-			accessHistory.add(new Write(loc));
-		}
-	}
-
-	
-	public final State onRead(Thread t, Object owner, String id, SourceLocation loc, int accessRegion) {
-		State newStateOnRead = newStateOnRead(t,accessRegion);
+	public final State onRead(ThreadRecord t, Object owner, String id, SourceLocation loc) {
+		State newStateOnRead = newStateOnRead(t.id,t.region);
+		History history = newStateOnRead.accessHistory;
 		if(newStateOnRead!=this) {
-			newStateOnRead.registerRead(loc);
+			history = history.add(SourceLocations.read(loc));
 		}
-		newStateOnRead.updateLocks();
-		newStateOnRead.processRead(t,owner,id,loc);
-		return newStateOnRead;
+		return newStateOnRead.update(history,t.locksHeld());
 	}
-	
-	protected void processRead(Thread t, Object owner, String id, SourceLocation loc) {}
 
-	protected State newStateOnRead(Thread t,int accessRegion) {
+	/**
+	 * Performs the side effects of a read that moved the field to this state,
+	 * such as reporting a race. Only called for installed states.
+	 */
+	protected void processRead(int t, Object owner, String id, SourceLocation loc) {}
+
+	protected State newStateOnRead(int t,int accessRegion) {
 		return this;
 	}
 
-	public final State onWrite(Thread t, Object owner, String id, SourceLocation loc, int accessRegion) {
-		State newStateOnWrite = newStateOnWrite(t,accessRegion);
+	public final State onWrite(ThreadRecord t, Object owner, String id, SourceLocation loc) {
+		State newStateOnWrite = newStateOnWrite(t.id,t.region);
+		History history = newStateOnWrite.accessHistory;
 		if(newStateOnWrite!=this) {
-			newStateOnWrite.registerWrite(loc);
+			history = history.add(SourceLocations.write(loc));
 		}
-		newStateOnWrite.updateLocks();
-		newStateOnWrite.processWrite(t,owner,id,loc);
-		return newStateOnWrite;
+		return newStateOnWrite.update(history,t.locksHeld());
 	}
-	
-	protected void processWrite(Thread t, Object owner, String id, SourceLocation loc) {}
 
-	protected State newStateOnWrite(Thread t, int accessRegion) {
+	/**
+	 * @see #processRead(int, Object, String, SourceLocation)
+	 */
+	protected void processWrite(int t, Object owner, String id, SourceLocation loc) {}
+
+	protected State newStateOnWrite(int t, int accessRegion) {
 		return this;
-	}	
-	
-	protected void updateLocks() {
-		Bag locksHeld = (Bag) Locking.aspectOf().locksHeld.get();
-		intersectWith(locksHeld);				
 	}
-	
-	private void intersectWith(Bag bag) {
-		synchronized (locks) {
-			if(locks.contains(FULLSET_MARKER)) {
-				locks.clear();
-				locks.addAll(bag);
-			} else {
-				locks.retainAll(bag);
-			}
-		}
-	}
-	
-	protected Object clone() {
-		try {
-			return super.clone();
-		} catch(CloneNotSupportedException e) {
-			throw new RuntimeException(e);
+
+	/**
+	 * Intersects the lockset with the locks currently held.
+	 * @param history the history of the updated state
+	 * @param locksHeld the locks held by the accessing thread
+	 * @return this state if neither history nor lockset changed, an updated copy otherwise
+	 */
+	private State update(History history, HeldLocks locksHeld) {
+		LockSet newLocks = locks.intersect(locksHeld);
+		if(history==accessHistory && newLocks==locks) {
+			return this;
 		}
+		return copy(history, newLocks);
 	}
+
+	/**
+	 * Returns a state of the same kind and with the same parameters as this
+	 * state but with the given history and lockset.
+	 */
+	protected abstract State copy(History history, LockSet locks);
 }
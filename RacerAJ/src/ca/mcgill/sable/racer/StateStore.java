@@ -0,0 +1,92 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008 Eric Bodden
+ */
+
+package ca.mcgill.sable.racer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aspectbench.tm.runtime.internal.WeakKeyIdentityHashMap;
+
+/**
+ * A mapping from a field owner to a field to a state that can be accessed
+ * concurrently. Owners are distributed over a number of stripes by their
+ * identity hash code, and only the lookup of an owner locks its stripe.
+ * States are immutable, so a field's state is replaced with a compare-and-set
+ * on the owner's field map instead of holding a lock while it is computed.
+ *
+ * @author Eric Bodden
+ */
+public class StateStore {
+
+	/**
+	 * The number of stripes; a power of two.
+	 */
+	public final static int STRIPES = 1024;
+
+	/**
+	 * Weak identity maps from owners to their field maps. Each stripe is
+	 * protected by itself.
+	 */
+	protected final WeakKeyIdentityHashMap[] stripes = new WeakKeyIdentityHashMap[STRIPES];
+
+	public StateStore() {
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new WeakKeyIdentityHashMap();
+		}
+	}
+
+	/**
+	 * Returns the map from field ids to states for the given owner, creating it if necessary.
+	 * @param owner the owner of a field
+	 */
+	public ConcurrentMap fieldsOf(Object owner) {
+		WeakKeyIdentityHashMap stripe = stripes[System.identityHashCode(owner) & (STRIPES-1)];
+		synchronized (stripe) {
+			ConcurrentMap fieldToState = (ConcurrentMap)stripe.get(owner);
+			if(fieldToState==null) {
+				fieldToState = new ConcurrentHashMap(4);
+				stripe.put(owner,fieldToState);
+			}
+			return fieldToState;
+		}
+	}
+
+	/**
+	 * Returns the current state of a field.
+	 * @param fieldToState the field map of the owner, as returned by {@link #fieldsOf(Object)}
+	 * @param id the field id
+	 * @return the current state, or the {@link VirginState} if the field has not been accessed yet
+	 */
+	public State get(ConcurrentMap fieldToState, String id) {
+		State state = (State)fieldToState.get(id);
+		if(state==null) {
+			state = VirginState.INSTANCE;
+		}
+		return state;
+	}
+
+	/**
+	 * Atomically replaces the state of a field if it is still <i>expected</i>.
+	 * @param fieldToState the field map of the owner, as returned by {@link #fieldsOf(Object)}
+	 * @param id the field id
+	 * @param expected the state returned by {@link #get(ConcurrentMap, String)}
+	 * @param newState the state to install
+	 * @return false if another thread replaced <i>expected</i> in the meantime
+	 */
+	public boolean replace(ConcurrentMap fieldToState, String id, State expected, State newState) {
+		if(expected==newState) {
+			return true;
+		}
+		if(expected==VirginState.INSTANCE) {
+			return fieldToState.putIfAbsent(id,newState)==null;
+		}
+		return fieldToState.replace(id,expected,newState);
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008 Eric Bodden
+ */
+
+package ca.mcgill.sable.racer;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.cocoaj.racer.ThreadIds;
+
+/**
+ * Everything the racer aspects know about a single thread: its compact id,
+ * its current region, the regions of the threads that started it and the
+ * locks it holds. States refer to threads only by their id, so terminated
+ * threads are never kept alive by the detector.
+ * A record is only reachable from the thread-local storage of its thread and
+ * only accessed by that thread.
+ *
+ * @author Eric Bodden
+ */
+public final class ThreadRecord {
+
+	/**
+	 * Shared bag for threads that never acquired a lock. It is never modified.
+	 */
+	private final static HeldLocks NO_LOCKS = new HeldLocks();
+
+	/**
+	 * The compact id of the thread.
+	 */
+	public final int id;
+
+	/**
+	 * The current region of the thread, incremented whenever it starts another thread.
+	 */
+	protected int region;
+
+	/**
+	 * A mapping from the id of each thread that (transitively) started this
+	 * thread to the region it was in at that time.
+	 */
+	protected final Map starterRegions;
+
+	/**
+	 * The locks held by this thread; allocated upon the first lock acquisition.
+	 */
+	protected HeldLocks locksHeld;
+
+	/**
+	 * @param threadIds the allocator of thread ids
+	 * @param starterRegions the regions of the starter threads, or <code>null</code>
+	 */
+	public ThreadRecord(ThreadIds threadIds, Map starterRegions) {
+		this.id = threadIds.acquire(this);
+		this.starterRegions = starterRegions==null ? Collections.EMPTY_MAP : starterRegions;
+	}
+
+	/**
+	 * Returns the locks held by this thread, for reading only.
+	 */
+	public HeldLocks locksHeld() {
+		return locksHeld==null ? NO_LOCKS : locksHeld;
+	}
+
+	/**
+	 * Returns the locks held by this thread, allocating the bag if necessary.
+	 * To be called upon lock acquisition.
+	 */
+	public HeldLocks locksHeldForUpdate() {
+		if(locksHeld==null) {
+			locksHeld = new HeldLocks();
+		}
+		return locksHeld;
+	}
+
+	/**
+	 * Returns the region the given thread was in when it (transitively) started this thread.
+	 * @param starterId the id of a thread
+	 * @return the region, or -1 if the thread did not start this thread
+	 */
+	public int starterRegion(int starterId) {
+		Integer region = (Integer)starterRegions.get(Integer.valueOf(starterId));
+		return region==null ? -1 : region.intValue();
+	}
+
+}
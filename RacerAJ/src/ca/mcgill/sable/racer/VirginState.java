@@ -8,28 +8,37 @@
 
 package ca.mcgill.sable.racer;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
-
-
 /**
- * VirginState
+ * VirginState. Since a virgin state has an empty history and the full lockset,
+ * a single instance is shared by all fields that have not been accessed yet.
  *
  * @author Eric Bodden
  */
 public class VirginState extends State {
 
-	public VirginState(Object fieldOwner, String fieldSignature) {
-		super(fieldOwner, fieldSignature, new LinkedHashSet(), new HashSet(Collections.singleton(State.FULLSET_MARKER)));
+	/**
+	 * The shared virgin state.
+	 */
+	public final static VirginState INSTANCE = new VirginState();
+
+	private VirginState() {
+		super(History.EMPTY, LockSet.FULL);
 	}
 
-	protected State newStateOnRead(Thread t,int accessRegion) {
-		return new ExclusiveState(t,accessRegion,this,false);
+	protected State newStateOnRead(int t,int accessRegion) {
+		return new ExclusiveState(t,accessRegion,accessHistory,locks);
 	}
 	
-	protected State newStateOnWrite(Thread t,int accessRegion) {
-		return new ModifiedState(t,accessRegion,this,false);
+	protected State newStateOnWrite(int t,int accessRegion) {
+		return new ModifiedState(t,accessRegion,accessHistory,locks);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Never called, as every access leaves the virgin state.
+	 */
+	protected State copy(History history, LockSet locks) {
+		throw new IllegalStateException("virgin state cannot be updated");
 	}
 	
 	public String toString() {
@@ -17,8 +17,21 @@ import org.aspectj.lang.reflect.SourceLocation;
  */
 public class Write extends AbstractAccessRecord {
 
+	/**
+	 * The kind of all writing records.
+	 */
+	public final static int KIND = 1;
+
 	public Write(SourceLocation accessLocation) {
-		super(accessLocation);
+		super(accessLocation, KIND);
+	}
+
+	/**
+	 * Creates the record of a writing access at the location with the given id;
+	 * use {@link SourceLocations#write(SourceLocation)} to obtain the shared instance.
+	 */
+	Write(int locationId) {
+		super(locationId, KIND);
 	}
 
 }
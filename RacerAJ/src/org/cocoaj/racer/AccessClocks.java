@@ -0,0 +1,79 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * The happens-before state of a field escalated in hybrid mode, in the style of
+ * FastTrack: the epoch (clock value and thread) of the last write, and the epoch of
+ * the last read, which is inflated to a vector clock only while reads by several
+ * threads are concurrent.
+ * Instances are protected by the monitor of their FieldState.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class AccessClocks {
+    private int writeClock;
+    private int writeThread;
+
+    private int readClock;
+    private int readThread;
+
+    /**
+     * The clocks of concurrent reads, or null if the last read is described by an epoch
+     */
+    private VectorClock reads;
+
+    /**
+     * Checks a read against the last write and records it.
+     * 
+     * @param t the compact id of the reading thread
+     * @param clock the vector clock of the reading thread
+     * @return true if the read races with the last write
+     */
+    boolean onRead(int t, VectorClock clock) {
+        boolean race = writeClock > clock.get(writeThread);
+        int now = clock.get(t);
+        if(reads != null) {
+            reads.set(t, now);
+        }
+        else if(readThread == t || readClock <= clock.get(readThread)) {
+            //the previous read happened before this one
+            readClock = now;
+            readThread = t;
+        }
+        else {
+            reads = new VectorClock();
+            reads.set(readThread, readClock);
+            reads.set(t, now);
+        }
+        return race;
+    }
+
+    /**
+     * Checks a write against the last write and the last reads and records it.
+     * 
+     * @param t the compact id of the writing thread
+     * @param clock the vector clock of the writing thread
+     * @return true if the write races with a previous access
+     */
+    boolean onWrite(int t, VectorClock clock) {
+        boolean race = writeClock > clock.get(writeThread);
+        if(reads != null) {
+            race |= !reads.isBefore(clock);
+            reads = null;
+        }
+        else {
+            race |= readClock > clock.get(readThread);
+        }
+        readClock = 0;
+        writeClock = clock.get(t);
+        writeThread = t;
+        return race;
+    }
+}
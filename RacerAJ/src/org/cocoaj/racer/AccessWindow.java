@@ -0,0 +1,76 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * The recent accesses to a field, as needed by the AtomicityChecker.
+ * Consecutive accesses by the same thread form a run; the window keeps the
+ * last access of the previous run and a summary of the current run.
+ * When a thread accesses the field after a run of another thread that followed
+ * one of its own runs, its previous access, the interleaved access and its current
+ * access are checked for an unserializable pattern.
+ * Instances are protected by the monitor of their FieldState.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class AccessWindow {
+    /**
+     * The last access of the previous run
+     */
+    private int olderThread = -1;
+    private boolean olderWrite;
+    private StaticPart olderSite;
+
+    /**
+     * The current run: its thread, its last access, and its first write if any
+     */
+    private int newerThread = -1;
+    private boolean newerWrite;
+    private StaticPart newerSite;
+    private StaticPart newerWriteSite;
+
+    /**
+     * Records an access and checks whether it completes an unserializable interleaving.
+     * 
+     * @param t the compact id of the accessing thread
+     * @param write true if the field is written
+     * @param site the JoinPoint.StaticPart of the access
+     * @return the previous local access and the interleaved remote access, or null
+     */
+    StaticPart[] onAccess(int t, boolean write, StaticPart site) {
+        if(newerThread == t) {
+            newerWrite = write;
+            newerSite = site;
+            if(write && newerWriteSite == null) {
+                newerWriteSite = site;
+            }
+            return null;
+        }
+
+        StaticPart[] violation = null;
+        if(olderThread == t) {
+            //any write of the remote run counts as the interleaved access
+            boolean remoteWrite = newerWriteSite != null;
+            if(remoteWrite ? !(olderWrite && write) : (olderWrite && write)) {
+                violation = new StaticPart[] { olderSite, remoteWrite ? newerWriteSite : newerSite };
+            }
+        }
+
+        olderThread = newerThread;
+        olderWrite = newerWrite;
+        olderSite = newerSite;
+        newerThread = t;
+        newerWrite = write;
+        newerSite = site;
+        newerWriteSite = write ? site : null;
+        return violation;
+    }
+}
@@ -8,7 +8,6 @@
 
 package org.cocoaj.racer;
 
-import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.aspectj.lang.Signature;
@@ -18,6 +17,8 @@ import org.aspectj.lang.JoinPoint.StaticPart;
  * The methods of this class are called by the Racer aspect upon each field access.
  * The finite-state machine corresponding to the accessed field is retrieved and updated
  * accordingly to the type of access (i.e.: read or write).
+ * The same lookup and the monitor of the finite-state machine also serve the
+ * AtomicityChecker, so enabling it does not add another dispatch.
  *
  * @author Eric Bodden
  * @author Danilo Ansaloni
@@ -30,10 +31,36 @@ public class AdviceExecutor {
      * A mapping from a field owner to a field to a state.
      * Since this map will be accessed concurrently by multiple threads, we split
      * the map into many sub-maps to take advantage from lock-striping.
+     * The FSMs of each owner are kept in an OwnerState, which also holds the
+     * per-owner data of the SharingProfiler.
      * The map is of custom type MyWeakKeyIdentityHashMap and uses weak-references
      * to store the keys and identity instead of equality to compare the entries.
      */
-    private MyWeakKeyIdentityHashMap<Object, ConcurrentHashMap<String, FieldState>>[] ownerToFieldToState;
+    private MyWeakKeyIdentityHashMap<Object, OwnerState>[] ownerToFieldToState;
+
+    /**
+     * The FSMs of static fields, by declaring class. Static fields do not go through
+     * the sub-maps above, so that hot static fields do not contend for their locks.
+     */
+    private final StaticFieldTable staticFields = new StaticFieldTable();
+
+    /**
+     * The off-heap states of instance fields; null unless the OffHeapStore is enabled.
+     * Owners that do not fit into the store are still tracked by the sub-maps above.
+     */
+    private final OffHeapStore offHeap = OffHeapStore.ENABLED ? new OffHeapStore() : null;
+
+    /**
+     * The access sites; null unless the OverheadGovernor, the SiteKnowledge or Telemetry is enabled.
+     * Shared by all instances, since what is known about the sites survives a reset of
+     * the analysis (see RacerSwitch).
+     */
+    private static final SiteTable sites = OverheadGovernor.ENABLED || SiteKnowledge.ENABLED || Telemetry.ENABLED ? SiteTable.create() : null;
+
+    /**
+     * Keeps the overhead of the analysis within budget; null if no budget is configured
+     */
+    private static final OverheadGovernor governor = OverheadGovernor.ENABLED ? new OverheadGovernor(sites) : null;
 
     /**
      * Initialize all the sub-maps.
@@ -46,7 +73,7 @@ public class AdviceExecutor {
         ownerToFieldToState = new MyWeakKeyIdentityHashMap[NUMBER_OF_MAPS];
 
         for(int i = 0; i < ownerToFieldToState.length; i++) {
-            ownerToFieldToState[i] = new MyWeakKeyIdentityHashMap<Object, ConcurrentHashMap<String, FieldState>>(8);
+            ownerToFieldToState[i] = new MyWeakKeyIdentityHashMap<Object, OwnerState>(8);
         }
     }
 
@@ -54,57 +81,215 @@ public class AdviceExecutor {
      * This method retrieves and updates the finite-state machine corresponding to
      * the accessed static field.
      * @param jpsp the JoinPoint.StaticPart corresponding to the intercepted joinpoint
-     * @param stack the collection of locks hold by the accessing thread
-     * @param t the accessing thread 
+     * @param context the context of the accessing thread, holding its id and its locks
+     * @param read true if the field is read, false if it is written
      */
-    void onStaticFieldAccess(StaticPart jpsp, Stack<Object> stack, Thread t) {
-        //if the accessed field is static we use jpsp.getSignature().getDeclaringType()
-        //as owner of the field 
-        onFieldAccess(jpsp, stack, t, jpsp.getSignature().getDeclaringType());
+    void onStaticFieldAccess(StaticPart jpsp, ThreadContext context, boolean read) {
+        //a null owner selects the static-field table
+        onFieldAccess(jpsp, context, null, read);
     }
 
     /**
      * This method retrieves and updates the finite-state machine corresponding to
      * the accessed field.
      * @param jpsp the JoinPoint.StaticPart corresponding to the intercepted joinpoint
-     * @param stack the collection of locks hold by the accessing thread
-     * @param t the accessing thread
-     * @param owner the instance of the class that owns the accessed field
+     * @param context the context of the accessing thread, holding its id and its locks
+     * @param owner the instance of the class that owns the accessed field, or null for a static field
+     * @param read true if the field is read, false if it is written
      */
-    void onFieldAccess(StaticPart jpsp, Stack<Object> stack, Thread t, Object owner) {
-        ConcurrentHashMap<String, FieldState> fieldToState;
-        MyWeakKeyIdentityHashMap<Object, ConcurrentHashMap<String, FieldState>> localOwnerToFieldToState
-            = ownerToFieldToState[System.identityHashCode(owner) % NUMBER_OF_MAPS];
-        //acquire the lock of the specific sub-map
-        synchronized(localOwnerToFieldToState) {
-            if((fieldToState = localOwnerToFieldToState.get(owner)) == null) {
-                //if there is no map of fields associated to that specific class instance, create a new one
-                localOwnerToFieldToState.put(owner, fieldToState = new ConcurrentHashMap<String, FieldState>());
+    void onFieldAccess(StaticPart jpsp, ThreadContext context, Object owner, boolean read) {
+        onAccess(jpsp, context, owner, false, read);
+    }
+
+    /**
+     * This method retrieves and updates the finite-state machine of the virtual field
+     * that stands for the contents of a collection (see CollectionRaces).
+     * @param jpsp the JoinPoint.StaticPart corresponding to the intercepted call
+     * @param context the context of the accessing thread, holding its id and its locks
+     * @param collection the collection whose method is called
+     * @param read true if the method only reads the collection
+     */
+    void onCollectionAccess(StaticPart jpsp, ThreadContext context, Object collection, boolean read) {
+        onAccess(jpsp, context, collection, true, read);
+    }
+
+    /**
+     * Lets the sites and the governor decide whether to analyze an access, and analyzes it.
+     * @param collection true if the access is a call to a method of a collection
+     * @param read true if the field is read, or the method only reads the collection
+     */
+    private void onAccess(StaticPart jpsp, ThreadContext context, Object owner, boolean collection, boolean read) {
+        if(sites == null) {
+            if(collection) {
+                analyzeCollection(jpsp, context, owner, read);
+            }
+            else {
+                analyze(jpsp, context, owner, read);
+            }
+            perturb(context);
+            return;
+        }
+
+        //let the site settings and the governor decide whether to analyze the access,
+        //and time a sample of the accesses
+        Site site = sites.site(jpsp);
+        if(SiteKnowledge.ENABLED) {
+            context.siteCounts(sites).count(site);
+        }
+        OverheadWindow window = governor == null ? null : context.overheadWindow();
+        boolean timed = window != null ? window.onAccess() : Telemetry.ENABLED && Telemetry.sample(context);
+        long start = timed ? System.nanoTime() : 0;
+        if((governor == null || !governor.isSuspended()) && site.shouldAnalyze(context.nextRandom())) {
+            //a reported field cannot reveal new races, but may still reveal atomicity violations
+            FieldState state = collection ? analyzeCollection(jpsp, context, owner, read) : analyze(jpsp, context, owner, read);
+            if(site.observe(state) && governor != null && !AtomicityChecker.ENABLED) {
+                governor.onSettled(site);
+            }
+        }
+        if(timed) {
+            long nanos = System.nanoTime() - start;
+            site.sampledNanos += nanos;
+            if(window != null) {
+                window.onTimedAccess(nanos, governor);
+            }
+            if(Telemetry.ENABLED) {
+                Telemetry.onAdvice(jpsp, nanos);
+            }
+        }
+        perturb(context);
+    }
+
+    /**
+     * Delays the thread if the access confined the field, outside of the monitor
+     * of the FSM and of the time measured by the governor.
+     */
+    private static void perturb(ThreadContext context) {
+        if(Perturbation.ENABLED && context.perturbationPending) {
+            context.perturbationPending = false;
+            Perturbation.perturb(context);
+        }
+    }
+
+    /**
+     * Retrieves and updates the finite-state machine corresponding to the accessed field.
+     * @return the finite-state machine of the field, or of the whole owner if it is not refined;
+     * null if the field is tracked off the heap
+     */
+    private FieldState analyze(StaticPart jpsp, ThreadContext context, Object owner, boolean read) {
+        if(owner == null) {
+            return analyzeStatic(jpsp, context, read);
+        }
+
+        if(offHeap != null && offHeap.access(jpsp, context, owner, read)) {
+            return null;
+        }
+
+        OwnerState ownerState = ownerState(owner);
+        FieldState currentState;
+        if((currentState = ownerState.objectState()) != null) {
+            //object granularity: a single FSM covers all fields of the owner until it finds a potential race
+            access(currentState, jpsp, context, read);
+            if(!currentState.needsRefinement()) {
+                profile(currentState, jpsp, context, ownerState, owner, read);
+                return currentState;
             }
+            //track the fields separately from now on, starting with this access
         }
 
+        ConcurrentHashMap<String, FieldState> fieldToState = ownerState.fieldToState();
         Signature signature;
         String signatureShortString;
-        FieldState currentState;
         //this operation can be performed without holding any lock because we are using a ConcurrentHashMap
         if((currentState = fieldToState.get(signatureShortString = (signature = jpsp.getSignature()).toShortString())) == null) {
             //if no finite-state machine has been associated to the accessed field, acquire the lock of the map...
             synchronized (fieldToState) {
                 //...and check again if the condition still holds (to avoid overriding an entry inserted by another thread)
-                if((currentState = fieldToState.get(signatureShortString = (signature = jpsp.getSignature()).toShortString())) == null) {
+                if((currentState = fieldToState.get(signatureShortString)) == null) {
                     //if no finite-state machine has been associated to the accessed field, create a new one
                     fieldToState.put(signatureShortString, currentState = new FieldState(signature));
                 }
             }
         }
+        access(currentState, jpsp, context, read);
+        profile(currentState, jpsp, context, ownerState, owner, read);
+        return currentState;
+    }
 
-        //perform the proper operation depending on the type of access (i.e.: read or write)
-        //TODO: avoid string comparison to perform this check
-        if(jpsp.getKind().equals("field-get")) {
-            currentState.onRead(t, jpsp, stack);
+    /**
+     * Retrieves and updates the finite-state machine of the virtual field of a collection.
+     * The SharingProfiler does not count these accesses, since it reasons about real fields.
+     * @return the finite-state machine of the virtual field
+     */
+    private FieldState analyzeCollection(StaticPart jpsp, ThreadContext context, Object collection, boolean read) {
+        ConcurrentHashMap<String, FieldState> fieldToState = ownerState(collection).fieldToState();
+        FieldState currentState;
+        if((currentState = fieldToState.get(CollectionRaces.CONTENTS)) == null) {
+            synchronized (fieldToState) {
+                if((currentState = fieldToState.get(CollectionRaces.CONTENTS)) == null) {
+                    fieldToState.put(CollectionRaces.CONTENTS,
+                        currentState = new FieldState(CollectionRaces.contents(collection.getClass(), jpsp)));
+                }
+            }
         }
-        else {
-            currentState.onWrite(t, jpsp, stack);
+        access(currentState, jpsp, context, read);
+        return currentState;
+    }
+
+    /**
+     * @return the FSMs of an owner, creating them if necessary
+     */
+    private OwnerState ownerState(Object owner) {
+        OwnerState ownerState;
+        MyWeakKeyIdentityHashMap<Object, OwnerState> localOwnerToFieldToState
+            = ownerToFieldToState[System.identityHashCode(owner) % NUMBER_OF_MAPS];
+        //acquire the lock of the specific sub-map
+        synchronized(localOwnerToFieldToState) {
+            if((ownerState = localOwnerToFieldToState.get(owner)) == null || ownerState.generation != RacerSwitch.generation) {
+                //if there is no state associated to that specific class instance, or only
+                //one of an older generation, create a new one
+                localOwnerToFieldToState.put(owner, ownerState = new OwnerState());
+            }
+        }
+        return ownerState;
+    }
+
+    /**
+     * Retrieves and updates the finite-state machine corresponding to the accessed
+     * static field, from the preallocated array of its declaring class.
+     * @return the finite-state machine of the field
+     */
+    private FieldState analyzeStatic(StaticPart jpsp, ThreadContext context, boolean read) {
+        Signature signature = jpsp.getSignature();
+        Class<?> declaringType = signature.getDeclaringType();
+        StaticFields fields = staticFields.get(declaringType);
+        int id;
+        if((id = fields.idOf(signature.getName())) < 0) {
+            //the field is declared by a superclass: fall back to the generic path,
+            //using the class as owner of the field
+            return analyze(jpsp, context, declaringType, read);
+        }
+        FieldState currentState = fields.state(id, signature);
+        access(currentState, jpsp, context, read);
+        profile(currentState, jpsp, context, fields.ownerState, declaringType, read);
+        return currentState;
+    }
+
+    /**
+     * Performs the transition of the FSM for a read or write access.
+     */
+    private static void access(FieldState state, StaticPart jpsp, ThreadContext context, boolean read) {
+        if(read ? state.onRead(context, jpsp) : state.onWrite(context, jpsp)) {
+            context.perturbationPending = Perturbation.ENABLED;
+        }
+    }
+
+    /**
+     * Counts the access in the SharingProfiler, if enabled.
+     */
+    private static void profile(FieldState state, StaticPart jpsp, ThreadContext context, OwnerState ownerState, Object owner, boolean read) {
+        if(SharingProfiler.ENABLED) {
+            context.sharingProfile().onAccess(ownerState, state, jpsp.getSignature().toShortString(),
+                owner instanceof Class<?> ? (Class<?>)owner : owner.getClass(), context.id, !read);
         }
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * Detects atomicity violations in the style of AVIO: two consecutive accesses of a
+ * thread to a field, interleaved by an access of another thread, such that the
+ * interleaving cannot be serialized. The unserializable patterns (local, remote,
+ * local) are read-write-read, write-write-read, read-write-write and
+ * write-read-write. This catches check-then-act sequences even if every single
+ * access is protected by a lock.
+ * The checks are performed by FieldState, so the atomicity analysis shares the
+ * dispatch and the monitor of the lockset analysis.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class AtomicityChecker {
+    /**
+     * True if the atomicity analysis is enabled
+     */
+    public static final boolean ENABLED = !System.getProperty("RACER_ATOMICITY","false").equals("false");
+
+    /**
+     * Contains the interleavings that have already been reported
+     */
+    private static final Set<String> reportedViolations = new HashSet<String>();
+
+    private AtomicityChecker() { }
+
+    /**
+     * Reports an unserializable interleaving, unless the same sites were reported before.
+     * 
+     * @param fieldSignature the signature of the field
+     * @param accesses the previous local access and the interleaved remote access
+     * @param current the current access
+     * @param t the compact id of the accessing thread
+     */
+    static void report(Signature fieldSignature, StaticPart[] accesses, StaticPart current, int t) {
+        String key = fieldSignature.toShortString() + accesses[0].getSourceLocation() + accesses[1].getSourceLocation()
+            + current.getSourceLocation();
+        synchronized(reportedViolations) {
+            if(!reportedViolations.add(key)) {
+                return;
+            }
+        }
+        System.err.println("==========================\nAtomicity violation found!\nUnserializable interleaving on field: "
+            + fieldSignature.toLongString()
+            + "\n" + describe(accesses[0]) + " (thread #" + t + ")"
+            + "\n" + describe(accesses[1]) + " (another thread)"
+            + "\n" + describe(current) + " (thread #" + t + ")"
+            + "\n==========================\n");
+    }
+
+    private static String describe(StaticPart access) {
+        return CollectionRaces.describe(access) + access.getSourceLocation();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.Arrays;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * The calling context of a field access: the innermost frames of the
+ * application stack at the time of the access.
+ * Instances are immutable and deduplicated per access site by {@link StackCache}.
+ * 
+ * @author Eric Bodden
+ */
+public final class CallStack {
+    /**
+     * The field access join point
+     */
+    final StaticPart site;
+
+    /**
+     * The innermost frames, starting with the method performing the access
+     */
+    private final StackTraceElement[] frames;
+
+    private final int hashCode;
+
+    CallStack(StaticPart site, StackTraceElement[] frames) {
+        this.site = site;
+        this.frames = frames;
+        this.hashCode = 31 * System.identityHashCode(site) + Arrays.hashCode(frames);
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof CallStack)) {
+            return false;
+        }
+        CallStack other = (CallStack)obj;
+        return site == other.site && hashCode == other.hashCode && Arrays.equals(frames, other.frames);
+    }
+
+    /**
+     * @return the access kind and location followed by one line per frame
+     */
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(CollectionRaces.describe(site)).append(site.getSourceLocation());
+        for(int i = 0; i < frames.length; i++) {
+            builder.append("\n    at ").append(frames[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * Finds races on the collections of java.util that are not thread-safe, without
+ * weaving the JDK. The Racer aspect intercepts the calls of the program to methods
+ * of collections and maps, and each call to a method that reads, respectively modifies,
+ * the collection is treated as a read, respectively write, of a single virtual field
+ * that stands for the contents of the collection. So a single FieldState per collection
+ * replaces the states of all its internal fields.
+ * Only instances of the classes listed in {@link #TRACKED_CLASSES} are tracked; their
+ * subclasses are woven like any other class of the program.
+ * The views of a tracked collection, such as key sets, sublists and submaps, its
+ * iterators, and the entries that the iterators of a tracked map return, are mapped
+ * back to the collection, so calls to their methods count as accesses of the collection
+ * as well. Not covered are the traversal of spliterators and streams, which only count
+ * as a read when they are created, the entries returned by other methods, such as
+ * TreeMap.firstEntry(), which cannot be modified anyway, and wrappers such as the
+ * ones of Collections.synchronizedMap or Collections.unmodifiableList.
+ *
+ * @author Danilo Ansaloni
+ */
+public final class CollectionRaces {
+    /**
+     * True if the collections are tracked
+     */
+    public static final boolean ENABLED = !System.getProperty("RACER_COLLECTIONS","false").equals("false");
+
+    /**
+     * The name of the virtual field in the OwnerState of a collection
+     */
+    static final String CONTENTS = "<contents>";
+
+    /**
+     * The tracked classes; the ones missing in older JDKs are skipped
+     */
+    private static final String[] TRACKED_CLASSES = {
+        "java.util.ArrayList", "java.util.LinkedList", "java.util.ArrayDeque", "java.util.PriorityQueue",
+        "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+        "java.util.HashMap", "java.util.LinkedHashMap", "java.util.TreeMap",
+        "java.util.IdentityHashMap", "java.util.WeakHashMap", "java.util.EnumMap"
+    };
+
+    private static final Set<Class<?>> trackedClasses = new HashSet<Class<?>>();
+
+    private static final int NUMBER_OF_MAPS = 16;
+
+    /**
+     * The tracked collections, by view, iterator or entry, striped by the identity hash
+     * code of the view; each map is protected by itself. The collection is only weakly
+     * referenced, since it may reference its views itself, e.g. a cached key set.
+     */
+    private static final MyWeakKeyIdentityHashMap<Object, WeakReference<Object>>[] views = views();
+
+    /**
+     * Whether the instances of a class can be views, i.e. whether it is a class of
+     * java.util other than the tracked ones
+     */
+    private static final ConcurrentHashMap<Class<?>, Boolean> viewClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * The signatures of the virtual fields, by collection class and class of the accessing code
+     */
+    private static final ConcurrentHashMap<String, Signature> signatures = new ConcurrentHashMap<String, Signature>();
+
+    static {
+        for(String name : TRACKED_CLASSES) {
+            try {
+                trackedClasses.add(Class.forName(name));
+            }
+            catch(ClassNotFoundException e) {
+                //not available in this JDK
+            }
+        }
+    }
+
+    /**
+     * The virtual field of the collections of a class that are used by the code of another class.
+     * Races on the collections of different classes are reported separately.
+     */
+    private static final class ContentsSignature implements Signature {
+        private final Class<?> collectionType;
+        private final String user;
+
+        ContentsSignature(Class<?> collectionType, String user) {
+            this.collectionType = collectionType;
+            this.user = user;
+        }
+
+        public String toShortString() {
+            return collectionType.getName().substring(collectionType.getName().lastIndexOf('.') + 1) + "." + CONTENTS
+                + (user == null ? "" : " used in " + user.substring(user.lastIndexOf('.') + 1));
+        }
+
+        public String toLongString() {
+            return collectionType.getName() + "." + CONTENTS + (user == null ? "" : " used in " + user);
+        }
+
+        public String toString() {
+            return toShortString();
+        }
+
+        public String getName() {
+            return CONTENTS;
+        }
+
+        public int getModifiers() {
+            return 0;
+        }
+
+        public Class getDeclaringType() {
+            return collectionType;
+        }
+
+        public String getDeclaringTypeName() {
+            return collectionType.getName();
+        }
+    }
+
+    private CollectionRaces() { }
+
+    @SuppressWarnings("unchecked")
+    private static MyWeakKeyIdentityHashMap<Object, WeakReference<Object>>[] views() {
+        MyWeakKeyIdentityHashMap<Object, WeakReference<Object>>[] views = new MyWeakKeyIdentityHashMap[NUMBER_OF_MAPS];
+        for(int i = 0; i < NUMBER_OF_MAPS; i++) {
+            views[i] = new MyWeakKeyIdentityHashMap<Object, WeakReference<Object>>(8);
+        }
+        return views;
+    }
+
+    /**
+     * @param target the target of a call to a method of a collection, map, iterator or map entry
+     * @return the tracked collection the target is or belongs to, or null if there is none
+     */
+    public static Object backing(Object target) {
+        Class<?> type = target.getClass();
+        if(trackedClasses.contains(type)) {
+            return target;
+        }
+        if(!isViewClass(type)) {
+            return null;
+        }
+        MyWeakKeyIdentityHashMap<Object, WeakReference<Object>> localViews = views[System.identityHashCode(target) % NUMBER_OF_MAPS];
+        WeakReference<Object> collection;
+        synchronized(localViews) {
+            collection = localViews.get(target);
+        }
+        return collection == null ? null : collection.get();
+    }
+
+    /**
+     * Maps a view, iterator or map entry back to its tracked collection.
+     * @param target the target of the call that returned the view
+     * @param view the returned object; an entry is only mapped if the collection is a map
+     */
+    public static void onView(Object target, Object view) {
+        Object collection;
+        if(view == null || !isViewClass(view.getClass()) || (collection = backing(target)) == null
+            || (view instanceof Map.Entry<?, ?> && !(collection instanceof Map<?, ?>))) {
+            return;
+        }
+        MyWeakKeyIdentityHashMap<Object, WeakReference<Object>> localViews = views[System.identityHashCode(view) % NUMBER_OF_MAPS];
+        synchronized(localViews) {
+            WeakReference<Object> known;
+            if((known = localViews.get(view)) == null || known.get() != collection) {
+                localViews.put(view, new WeakReference<Object>(collection));
+            }
+        }
+    }
+
+    private static boolean isViewClass(Class<?> type) {
+        Boolean viewClass;
+        if((viewClass = viewClasses.get(type)) == null) {
+            String name = type.getName();
+            viewClass = Boolean.valueOf(name.startsWith("java.util.") && name.indexOf('.', "java.util.".length()) < 0
+                && !trackedClasses.contains(type));
+            viewClasses.put(type, viewClass);
+        }
+        return viewClass.booleanValue();
+    }
+
+    /**
+     * @param access a field access or a call to a method of a collection
+     * @return the prefix that describes the access in reports
+     */
+    static String describe(StaticPart access) {
+        String kind = access.getKind();
+        if(kind.equals("method-call")) {
+            return "CALL " + access.getSignature().getName() + ": ";
+        }
+        return kind.equals("field-get") ? "READ: " : "WRITE: ";
+    }
+
+    /**
+     * @param collectionType the class of a tracked collection
+     * @param jpsp the first call to a method of the collection
+     * @return the signature of the virtual field of the collection
+     */
+    static Signature contents(Class<?> collectionType, StaticPart jpsp) {
+        Class<?> withinType = jpsp.getSourceLocation() == null ? null : jpsp.getSourceLocation().getWithinType();
+        String user = withinType == null ? null : withinType.getName();
+        String key = collectionType.getName() + " " + user;
+        Signature signature;
+        if((signature = signatures.get(key)) == null) {
+            Signature newSignature = new ContentsSignature(collectionType, user);
+            if((signature = signatures.putIfAbsent(key, newSignature)) == null) {
+                signature = newSignature;
+            }
+        }
+        return signature;
+    }
+}
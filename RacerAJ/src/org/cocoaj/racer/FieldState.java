@@ -11,7 +11,6 @@ package org.cocoaj.racer;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
-import java.util.Stack;
 
 import org.aspectj.lang.Signature;
 import org.aspectj.lang.JoinPoint.StaticPart;
@@ -41,21 +40,29 @@ public final class FieldState {
     }
 
     /**
-     * Contains all the potential data-races that have already been reported 
+     * Contains all the potential data-races that have already been reported
+     * outside of a RaceScope; within a scope, the scope keeps them
      */
     private static Set<String> reportedRaces = new HashSet<String>();
 
     /**
-     * The signature of the field associated to this FSM
+     * The signature of the field associated to this FSM, or null if the FSM
+     * covers all fields of an object
      */
     private final Signature fieldSignature;
 
     /**
      * Data structures used to record an history of the accesses that could
-     * represent a data-race
+     * represent a data-race; allocated upon the first recorded access
      */
-    private LinkedList<StaticPart> readList = new LinkedList<StaticPart>();
-    private LinkedList<StaticPart> writeList = new LinkedList<StaticPart>();
+    private LinkedList<StaticPart> readList;
+    private LinkedList<StaticPart> writeList;
+
+    /**
+     * The calling contexts of the accesses that made the field shared; allocated
+     * upon the first such access
+     */
+    private LinkedList<CallStack> callStacks;
 
     /**
      * The collection of locks that the threads hold when accessing the associated
@@ -63,25 +70,71 @@ public final class FieldState {
      */
     private MyList<Object> locksList;
 
+    /**
+     * The recent accesses checked by the AtomicityChecker; allocated upon the
+     * first access if the atomicity analysis is enabled
+     */
+    private AccessWindow accessWindow;
+
+    /**
+     * The happens-before state; attached in hybrid mode once the lockset of the
+     * field became empty
+     */
+    private AccessClocks clocks;
+
     /**
      * The current state of the FSM
      */
     private FState currentState;
 
     /**
-     * A reference to the first thread that accessed the associated field
+     * Incremented before and after each update of the state and the lockset, so it
+     * is odd while an update is in progress (see {@link #readShared(ThreadContext)})
+     */
+    private volatile int version;
+
+    /**
+     * The lockset while the field is SHARED, published after each update for
+     * {@link #readShared(ThreadContext)}; null in any other state
+     */
+    private volatile MyList<Object> sharedLocks;
+
+    /**
+     * The published lockset of a SHARED field that has always been accessed without locks
+     */
+    private static final MyList<Object> NO_LOCKS = new MyList<Object>();
+
+    /**
+     * The compact id of the first thread that accessed the associated field.
+     * We do not keep a reference to the thread itself, so that terminated
+     * threads can be reclaimed.
      */
-    private Thread t;
+    private int threadId;
 
     /**
      * True if the field has never been accessed by any thread.
      */
     private boolean virgin;
 
+    /**
+     * True if this is an object-level FSM that found a potential race, so that
+     * the fields of the object have to be tracked separately
+     */
+    private volatile boolean needsRefinement;
+
+    /**
+     * The compact ids of the threads that last accessed and last wrote the field,
+     * or -1. Maintained by the SharingProfiler outside of the monitor of this FSM,
+     * so they are only approximate.
+     */
+    int lastAccessor = -1;
+    int lastWriter = -1;
+
     /**
      * Creates a new FSM in VIRGIN state
      * 
-     * @param fieldSignature the signature of the corresponding field
+     * @param fieldSignature the signature of the corresponding field, or null
+     * for an object-level FSM, which never reports races but requests refinement
      */
     public FieldState(Signature fieldSignature) {
         this.fieldSignature = fieldSignature;
@@ -89,142 +142,295 @@ public final class FieldState {
         virgin = true;
     }
 
+    /**
+     * Performs the state transitions, updates the history, and intersects the
+     * set of locks in case of read access to the field, holding the monitor of
+     * the FSM unless the read cannot change anything (see {@link #readShared(ThreadContext)}).
+     * 
+     * @param context the context of the accessing thread
+     * @param jpsp the JoinPoint.Static part relative to the intercepted joinpoint
+     * @return true if the access made the field EXCLUSIVE or MODIFIED, i.e. confined
+     * to the accessing thread
+     */
+    public boolean onRead(ThreadContext context, StaticPart jpsp) {
+        if(readShared(context)) {
+            return false;
+        }
+        synchronized(this) {
+            version++;
+            try {
+                if(!Telemetry.ENABLED) {
+                    return read(context, jpsp);
+                }
+                FState from = currentState;
+                boolean confined = read(context, jpsp);
+                if(currentState != from) {
+                    Telemetry.onStateChange(fieldSignature, from.name(), currentState.name());
+                }
+                return confined;
+            }
+            finally {
+                publish();
+                version++;
+            }
+        }
+    }
+
     /**
      * Synchronized method to perform the state transitions, update the history,
-     * and intersect the set of locks in case of read access to the field.
+     * and intersect the set of locks in case of write access to the field.
+     * 
+     * @param context the context of the accessing thread
+     * @param jpsp the JoinPoint.Static part relative to the intercepted joinpoint
+     * @return true if the access made the field EXCLUSIVE or MODIFIED, i.e. confined
+     * to the accessing thread
+     */
+    public synchronized boolean onWrite(ThreadContext context, StaticPart jpsp) {
+        version++;
+        try {
+            if(!Telemetry.ENABLED) {
+                return write(context, jpsp);
+            }
+            FState from = currentState;
+            boolean confined = write(context, jpsp);
+            if(currentState != from) {
+                Telemetry.onStateChange(fieldSignature, from.name(), currentState.name());
+            }
+            return confined;
+        }
+        finally {
+            publish();
+            version++;
+        }
+    }
+
+    /**
+     * Performs a read of a SHARED field without taking the monitor, if the reading
+     * thread holds all locks of the lockset: then the read changes neither the state
+     * nor the lockset, so read-mostly fields such as configuration and lookup tables
+     * do not turn into contention points. The lockset is read from its published
+     * copy between two reads of the version, and the check fails if an update
+     * intervened. Since the state never returns to SHARED and the lockset only
+     * shrinks, even a check that overlaps an update only sees a lockset that this
+     * read would not have changed either.
+     * 
+     * @param context the context of the accessing thread
+     * @return true if the read has been performed
+     */
+    private boolean readShared(ThreadContext context) {
+        if(AtomicityChecker.ENABLED) {
+            //the atomicity analysis needs to see every access
+            return false;
+        }
+        int v;
+        MyList<Object> locks;
+        if(((v = version) & 1) != 0 || (locks = sharedLocks) == null) {
+            return false;
+        }
+        return locks.isContainedIn(context.locks(), context.depth()) && version == v;
+    }
+
+    /**
+     * Publishes the lockset if the field is SHARED, after an update with the monitor held.
+     */
+    private void publish() {
+        MyList<Object> locks = currentState != FState.SHARED ? null : locksList != null ? locksList : NO_LOCKS;
+        if(sharedLocks != locks) {
+            sharedLocks = locks;
+        }
+    }
+
+    /**
+     * Performs the state transitions of a read access; called with the monitor held.
      * 
-     * @param t the accessing thread
+     * @param context the context of the accessing thread
      * @param jpsp the JoinPoint.Static part relative to the intercepted joinpoint
-     * @param stack the collection of locks hold by the accessing thread
+     * @return true if the access made the field EXCLUSIVE or MODIFIED, i.e. confined
+     * to the accessing thread
      */
-    public synchronized void onRead(Thread t, StaticPart jpsp, Stack<Object> stack) {
+    private boolean read(ThreadContext context, StaticPart jpsp) {
+        int t = context.id;
+        if(AtomicityChecker.ENABLED && fieldSignature != null) {
+            checkAtomicity(t, false, jpsp);
+        }
+        if(clocks != null) {
+            if(currentState != FState.REPORTED_RACE && clocks.onRead(t, context.clock) && confirmRace()) {
+                currentState = FState.REPORTED_RACE;
+                recordRead(jpsp);
+                reportRace(jpsp);
+            }
+            return false;
+        }
         boolean reportRace = false;
         switch(currentState) {
             case VIRGIN:
                 currentState = FState.EXCLUSIVE;
-                this.t = t;
-                readList.add(jpsp);
-                updateLocks(stack);
-                return;
+                this.threadId = t;
+                recordRead(jpsp);
+                updateLocks(context);
+                return true;
             case EXCLUSIVE:
-                if(this.t != t) {
+                if(this.threadId != t) {
                     currentState = FState.SHARED;
-                    readList.add(jpsp);
+                    recordRead(jpsp);
+                    captureStack(jpsp);
                 }
-                updateLocks(stack);
-                return;
+                updateLocks(context);
+                return false;
             case MODIFIED:
-                if(this.t != t) {
-                    readList.add(jpsp);
-                    updateLocks(stack);
-                    if(reportRace = needToReportRace()) {
+                if(this.threadId != t) {
+                    recordRead(jpsp);
+                    updateLocks(context);
+                    if(reportRace = needToReportRace(context, false)) {
                         currentState = FState.REPORTED_RACE;
                         break;
                     }
                     else {
                         currentState = FState.SHARED_MODIFIED;
-                        return;
+                        captureStack(jpsp);
+                        return false;
                     }
                 }
                 else {
-                    updateLocks(stack);
+                    updateLocks(context);
                 }
-                return;
+                return false;
             case SHARED:
-                updateLocks(stack);
-                return;
+                updateLocks(context);
+                return false;
             case SHARED_MODIFIED:
-                updateLocks(stack);
-                if(reportRace = needToReportRace()) {
+                updateLocks(context);
+                if(reportRace = needToReportRace(context, false)) {
                     currentState = FState.REPORTED_RACE;
                     break;
                 }
-                return;
+                return false;
             case REPORTED_RACE:
-                return;
+                return false;
         }
         if(reportRace) {
-            reportRace();
+            reportRace(jpsp);
         }
+        return false;
     }
 
     /**
-     * Synchronized method to perform the state transitions, update the history,
-     * and intersect the set of locks in case of write access to the field.
+     * Performs the state transitions of a write access; called with the monitor held.
      * 
-     * @param t the accessing thread
+     * @param context the context of the accessing thread
      * @param jpsp the JoinPoint.Static part relative to the intercepted joinpoint
-     * @param stack the collection of locks hold by the accessing thread
+     * @return true if the access made the field EXCLUSIVE or MODIFIED, i.e. confined
+     * to the accessing thread
      */
-    public synchronized void onWrite(Thread t, StaticPart jpsp, Stack<Object> stack) {
+    private boolean write(ThreadContext context, StaticPart jpsp) {
+        int t = context.id;
+        if(AtomicityChecker.ENABLED && fieldSignature != null) {
+            checkAtomicity(t, true, jpsp);
+        }
+        if(clocks != null) {
+            if(currentState != FState.REPORTED_RACE && clocks.onWrite(t, context.clock) && confirmRace()) {
+                currentState = FState.REPORTED_RACE;
+                recordWrite(jpsp);
+                reportRace(jpsp);
+            }
+            return false;
+        }
         boolean reportRace = false;
         switch(currentState) {
             case VIRGIN:
                 currentState = FState.MODIFIED;
-                this.t = t;
-                writeList.add(jpsp);
-                updateLocks(stack);
-                return;
+                this.threadId = t;
+                recordWrite(jpsp);
+                updateLocks(context);
+                return true;
             case EXCLUSIVE:
-                if(this.t == t) {
+                if(this.threadId == t) {
                     currentState = FState.MODIFIED;
-                    writeList.add(jpsp);
-                    updateLocks(stack);
-                    return;
+                    recordWrite(jpsp);
+                    updateLocks(context);
+                    return true;
                 }
                 else {
-                    writeList.add(jpsp);
-                    updateLocks(stack);
-                    if(reportRace = needToReportRace()) {
+                    recordWrite(jpsp);
+                    updateLocks(context);
+                    if(reportRace = needToReportRace(context, true)) {
                         currentState = FState.REPORTED_RACE;
                         break;
                     }
                     else {
                         currentState = FState.SHARED_MODIFIED;
+                        captureStack(jpsp);
                     }
                 }
-                return;
+                return false;
             case MODIFIED:
-                if(this.t != t) {
-                    writeList.add(jpsp);
-                    updateLocks(stack);
-                    if(reportRace = needToReportRace()) {
+                if(this.threadId != t) {
+                    recordWrite(jpsp);
+                    updateLocks(context);
+                    if(reportRace = needToReportRace(context, true)) {
                         currentState = FState.REPORTED_RACE;
                         break;
                     }
                     else {
                         currentState = FState.SHARED_MODIFIED;
-                        return;
+                        captureStack(jpsp);
+                        return false;
                     }
                 }
                 else {
-                    updateLocks(stack);
+                    updateLocks(context);
                 }
-                return;
+                return false;
             case SHARED:
-                writeList.add(jpsp);
-                updateLocks(stack);
-                if(reportRace = needToReportRace()) {
+                recordWrite(jpsp);
+                updateLocks(context);
+                if(reportRace = needToReportRace(context, true)) {
                     currentState = FState.REPORTED_RACE;
                     break;
                 }
                 else {
                     currentState = FState.SHARED_MODIFIED;
+                    captureStack(jpsp);
                 }
-                return;
+                return false;
             case SHARED_MODIFIED:
-                updateLocks(stack);
-                if(reportRace = needToReportRace()) {
+                updateLocks(context);
+                if(reportRace = needToReportRace(context, true)) {
                     currentState = FState.REPORTED_RACE;
                     break;
                 }
-                return;
+                return false;
             case REPORTED_RACE:
-                return;
+                return false;
         }
         if(reportRace) {
-            reportRace();
+            reportRace(jpsp);
         }
+        return false;
+    }
+
+    /**
+     * @return true if a race has been reported for this field; read without
+     * synchronization, so the answer may be stale
+     */
+    boolean isReported() {
+        return currentState == FState.REPORTED_RACE;
+    }
+
+    /**
+     * @return true if this is an object-level FSM that found a potential race
+     */
+    boolean needsRefinement() {
+        return needsRefinement;
+    }
+
+    /**
+     * @return true if the field has been accessed by more than one thread; read
+     * without synchronization, so the answer may be stale
+     */
+    boolean isShared() {
+        FState state = currentState;
+        return state == FState.SHARED || state == FState.SHARED_MODIFIED || state == FState.REPORTED_RACE;
     }
 
     /**
@@ -232,48 +438,193 @@ public final class FieldState {
      * intersection with the associated locks and the collection of locks hold
      * by the last accessing thread.
      *  
-     * @param stack the collection of locks hold by the accessing thread
+     * @param context the context of the accessing thread, holding its locks
      */
-    private void updateLocks(Stack<Object> stack) {
+    private void updateLocks(ThreadContext context) {
         if(virgin) {
             virgin = false;
             int index;
-            if((index = stack.size()) != 0) {
-                locksList = new MyList<Object>(stack.toArray(), index);
+            if((index = context.depth()) != 0) {
+                locksList = new MyList<Object>(context.locks(), index);
             }
         }
         else {
             if(locksList != null) {
-                locksList.retainAll(stack.toArray(), stack.size());
+                locksList.retainAll(context.locks(), context.depth());
             }
         }
     }
 
     /**
+     * Feeds an access to the atomicity analysis.
+     * 
+     * @param t the compact id of the accessing thread
+     * @param write true if the field is written
+     * @param jpsp the JoinPoint.StaticPart of the access
+     */
+    private void checkAtomicity(int t, boolean write, StaticPart jpsp) {
+        if(accessWindow == null) {
+            accessWindow = new AccessWindow();
+        }
+        StaticPart[] violation;
+        if((violation = accessWindow.onAccess(t, write, jpsp)) != null) {
+            AtomicityChecker.report(fieldSignature, violation, jpsp, t);
+        }
+    }
+
+    /**
+     * Adds a read access to the history.
+     * 
+     * @param jpsp the JoinPoint.StaticPart of the access
+     */
+    private void recordRead(StaticPart jpsp) {
+        if(fieldSignature != null) {
+            if(readList == null) {
+                readList = new LinkedList<StaticPart>();
+            }
+            readList.add(jpsp);
+        }
+    }
+
+    /**
+     * Adds a write access to the history.
+     * 
+     * @param jpsp the JoinPoint.StaticPart of the access
+     */
+    private void recordWrite(StaticPart jpsp) {
+        if(fieldSignature != null) {
+            if(writeList == null) {
+                writeList = new LinkedList<StaticPart>();
+            }
+            writeList.add(jpsp);
+        }
+    }
+
+    /**
+     * Records the calling context of an access that made the field shared.
+     * 
+     * @param jpsp the JoinPoint.StaticPart of the access
+     */
+    private void captureStack(StaticPart jpsp) {
+        if(fieldSignature == null) {
+            return;
+        }
+        CallStack stack;
+        if((stack = StackCache.capture(jpsp)) != null) {
+            if(callStacks == null) {
+                callStacks = new LinkedList<CallStack>();
+            }
+            callStacks.add(stack);
+        }
+    }
+
+    /**
+     * In hybrid mode, a field without common lock is escalated to the happens-before
+     * check instead, starting with the current access.
+     * 
+     * @param context the context of the accessing thread
+     * @param write true if the current access is a write
      * @return true if no potential data-race has already been reported for the
      * associated field
      */
-    private boolean needToReportRace() {
+    private boolean needToReportRace(ThreadContext context, boolean write) {
         if((locksList == null) || (locksList.isEmpty())) {
-            synchronized(reportedRaces) {
-                return reportedRaces.add(fieldSignature.toShortString());
+            if(fieldSignature == null) {
+                //the accesses may concern different fields: let the owner be refined
+                needsRefinement = true;
+                return false;
             }
+            if(HappensBefore.ENABLED) {
+                clocks = new AccessClocks();
+                if(write) {
+                    clocks.onWrite(context.id, context.clock);
+                }
+                else {
+                    clocks.onRead(context.id, context.clock);
+                }
+                return false;
+            }
+            return confirmRace();
         }
         return false;
     }
 
     /**
-     * Reports a potential data-race.
+     * @return true if no race has already been reported for the associated field
+     */
+    private boolean confirmRace() {
+        return confirmRace(fieldSignature);
+    }
+
+    /**
+     * Lets all fields be reported again, when a new generation starts (see RacerSwitch).
+     */
+    static void forgetReportedRaces() {
+        synchronized(reportedRaces) {
+            reportedRaces.clear();
+        }
+    }
+
+    /**
+     * @param fieldSignature the signature of a racy field
+     * @return true if no race has already been reported for the field, in the
+     * RaceScope of the current thread if there is one
      */
-    private void reportRace() {
-        System.err.print("==========================\nRace condition found!\nUnprotected access to field: " + fieldSignature.toLongString());
-        String accessHistory = new String();
-        while(!readList.isEmpty()) {
-            accessHistory += "\nREAD: " + readList.removeFirst().getSourceLocation().toString();
+    static boolean confirmRace(Signature fieldSignature) {
+        Set<String> reported;
+        if((reported = RaceScope.reportedFields()) == null) {
+            reported = reportedRaces;
+        }
+        synchronized(reported) {
+            return reported.add(fieldSignature.toShortString());
+        }
+    }
+
+    /**
+     * Reports a potential data-race, including the calling contexts of the
+     * accesses that made the field shared and of the racing access.
+     * 
+     * @param jpsp the JoinPoint.StaticPart of the racing access
+     */
+    private void reportRace(StaticPart jpsp) {
+        String report = "Unprotected access to field: " + fieldSignature.toLongString();
+        //the earliest recorded access at another site, preferably a write, pairs with the racing access
+        String racingSite = jpsp.getSourceLocation().toString();
+        String otherRead = null;
+        String otherWrite = null;
+        while(readList != null && !readList.isEmpty()) {
+            StaticPart access = readList.removeFirst();
+            String site = access.getSourceLocation().toString();
+            report += "\n" + CollectionRaces.describe(access) + site;
+            if(otherRead == null && !site.equals(racingSite)) {
+                otherRead = site;
+            }
+        }
+        while(writeList != null && !writeList.isEmpty()) {
+            StaticPart access = writeList.removeFirst();
+            String site = access.getSourceLocation().toString();
+            report += "\n" + CollectionRaces.describe(access) + site;
+            if(otherWrite == null && !site.equals(racingSite)) {
+                otherWrite = site;
+            }
+        }
+        CallStack racingStack;
+        if((racingStack = StackCache.capture(jpsp)) != null) {
+            report += "\n--------------------------\nRacing access:\n" + racingStack;
+            if(callStacks != null) {
+                report += "\n--------------------------\nShared by:";
+                while(!callStacks.isEmpty()) {
+                    report += "\n" + callStacks.removeFirst();
+                }
+            }
+        }
+        System.err.println("==========================\nRace condition found!\n" + report + "\n==========================\n");
+        RaceScope.onRace(report);
+        if(Telemetry.ENABLED) {
+            Telemetry.onRace(fieldSignature, report);
         }
-        while(!writeList.isEmpty()) {
-            accessHistory += "\nWRITE: " + writeList.removeFirst().getSourceLocation().toString();
+        if(RaceStore.ENABLED) {
+            RaceStore.record(fieldSignature.toLongString(), racingSite, otherWrite != null ? otherWrite : otherRead, report);
         }
-        System.err.println(accessHistory + "\n==========================\n");
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Maintains the vector clocks of threads and locks for the hybrid mode, in which
+ * fields that the lockset analysis finds unprotected are escalated to a precise
+ * happens-before check (see AccessClocks), and only confirmed races are reported.
+ * The clocks follow monitor acquisitions and releases (including Object.wait),
+ * Thread.start and Thread.join. Fields are only charged when they are escalated;
+ * the synchronization events are tracked in any case, as an escalated field needs
+ * the clocks of all threads to be up to date.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class HappensBefore {
+    /**
+     * True if the hybrid mode is enabled
+     */
+    public static final boolean ENABLED = !System.getProperty("RACER_HYBRID","false").equals("false");
+
+    private static final int NUMBER_OF_MAPS = 1024;
+
+    /**
+     * The clocks of the locks, protected by the lock of each sub-map
+     */
+    private final MyWeakKeyIdentityHashMap<Object, VectorClock>[] lockToClock;
+
+    /**
+     * The clock that a thread inherits from the thread that started it, until it begins;
+     * protected by itself
+     */
+    private final Map<Thread, VectorClock> pendingClocks = new WeakHashMap<Thread, VectorClock>();
+
+    /**
+     * The clock of each thread, for Thread.join; protected by itself
+     */
+    private final Map<Thread, VectorClock> threadToClock = new WeakHashMap<Thread, VectorClock>();
+
+    /**
+     * The clock of the latest thread that used each compact id; protected by this.
+     * A thread that reuses the id of a terminated thread continues its clock, so that
+     * its accesses are not mistaken for accesses of its predecessor.
+     */
+    private VectorClock[] clockById = new VectorClock[64];
+
+    HappensBefore() {
+        lockToClock = new MyWeakKeyIdentityHashMap[NUMBER_OF_MAPS];
+        for(int i = 0; i < lockToClock.length; i++) {
+            lockToClock[i] = new MyWeakKeyIdentityHashMap<Object, VectorClock>(8);
+        }
+    }
+
+    /**
+     * Creates the clock of the current thread. To be called when its context is created.
+     */
+    void onThreadBegin(ThreadContext context) {
+        VectorClock clock = new VectorClock();
+        Thread current = Thread.currentThread();
+        VectorClock inherited;
+        synchronized(pendingClocks) {
+            inherited = pendingClocks.remove(current);
+        }
+        if(inherited != null) {
+            clock.join(inherited);
+        }
+        int t = context.id;
+        synchronized(this) {
+            if(t >= clockById.length) {
+                VectorClock[] newClocks = new VectorClock[Math.max(t + 1, clockById.length * 2)];
+                System.arraycopy(clockById, 0, newClocks, 0, clockById.length);
+                clockById = newClocks;
+            }
+            VectorClock predecessor = clockById[t];
+            clock.set(t, (predecessor == null ? 0 : predecessor.get(t)) + 1);
+            clockById[t] = clock;
+        }
+        synchronized(threadToClock) {
+            threadToClock.put(current, clock);
+        }
+        context.clock = clock;
+    }
+
+    /**
+     * Called before a thread starts another thread.
+     */
+    void onStart(ThreadContext context, Thread started) {
+        synchronized(pendingClocks) {
+            pendingClocks.put(started, context.clock.copy());
+        }
+        context.clock.tick(context.id);
+    }
+
+    /**
+     * Called after Thread.join returned.
+     */
+    void onJoin(ThreadContext context, Thread joined) {
+        if(joined.isAlive()) {
+            //join timed out
+            return;
+        }
+        VectorClock clock;
+        synchronized(threadToClock) {
+            clock = threadToClock.get(joined);
+        }
+        if(clock != null) {
+            context.clock.join(clock);
+        }
+    }
+
+    /**
+     * Called after a monitor has been acquired.
+     */
+    void onAcquire(ThreadContext context, Object lock) {
+        VectorClock lockClock;
+        MyWeakKeyIdentityHashMap<Object, VectorClock> map = lockToClock[System.identityHashCode(lock) % NUMBER_OF_MAPS];
+        synchronized(map) {
+            lockClock = map.get(lock);
+        }
+        if(lockClock != null) {
+            synchronized(lockClock) {
+                context.clock.join(lockClock);
+            }
+        }
+    }
+
+    /**
+     * Called before a monitor is released.
+     */
+    void onRelease(ThreadContext context, Object lock) {
+        VectorClock lockClock;
+        MyWeakKeyIdentityHashMap<Object, VectorClock> map = lockToClock[System.identityHashCode(lock) % NUMBER_OF_MAPS];
+        synchronized(map) {
+            if((lockClock = map.get(lock)) == null) {
+                map.put(lock, lockClock = new VectorClock());
+            }
+        }
+        synchronized(lockClock) {
+            lockClock.copyFrom(context.clock);
+        }
+        context.clock.tick(context.id);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * Predicts deadlocks from the order in which locks are acquired.
+ * The nodes of the graph are the lock objects. Whenever a thread acquires a lock while
+ * holding others, an edge is added from each held lock to the new one, labeled with
+ * the pair of synchronized blocks (lock sites) that first acquired them in this order.
+ * Edges are deduplicated by their pair of locks, and looking up an existing edge is a
+ * lock-free read. Nodes only refer weakly to their lock; edges to nodes of collected
+ * locks are dropped as the graph is searched and grows.
+ * Cycles are searched incrementally: only when an edge is added, and only among the
+ * nodes reachable from its target. A cycle is reported as a potential deadlock
+ * unless all its edges were only ever added by the same thread; cycles are reported
+ * once per set of lock sites.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class LockGraph {
+    /**
+     * True if the lock-order analysis is enabled
+     */
+    public static final boolean ENABLED = !System.getProperty("RACER_LOCK_ORDER","false").equals("false");
+
+    private static final int NUMBER_OF_MAPS = 16;
+
+    /**
+     * A lock object
+     */
+    static final class Node {
+        private final WeakReference<Object> lock;
+        private final String name;
+
+        /**
+         * The outgoing edges, by target node
+         */
+        final ConcurrentHashMap<Node, Edge> successors = new ConcurrentHashMap<Node, Edge>(4);
+
+        Node(Object lock) {
+            this.lock = new WeakReference<Object>(lock);
+            this.name = LockProfiler.describe(lock);
+        }
+
+        /**
+         * @return true if the lock has been garbage collected, so that it cannot be part of a deadlock
+         */
+        boolean isCollected() {
+            return lock.get() == null;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The lock "to" acquired at "toSite" while holding the lock "from" acquired at "fromSite"
+     */
+    static final class Edge {
+        final Node from;
+        final Node to;
+        final StaticPart fromSite;
+        final StaticPart toSite;
+
+        /**
+         * The compact id of the thread that added the edge
+         */
+        final int threadId;
+
+        /**
+         * True once a second thread acquired the locks in this order
+         */
+        volatile boolean multiThreaded;
+
+        Edge(Node from, Node to, StaticPart fromSite, StaticPart toSite, int threadId) {
+            this.from = from;
+            this.to = to;
+            this.fromSite = fromSite;
+            this.toSite = toSite;
+            this.threadId = threadId;
+        }
+
+        /**
+         * @return the pair of lock sites, which identifies the edge in reported cycles
+         */
+        String sites() {
+            return fromSite.getSourceLocation() + " -> " + toSite.getSourceLocation();
+        }
+    }
+
+    /**
+     * A step of the search for cycles: the edge that reached a node, and whether the
+     * path up to the source of that edge already involved another thread
+     */
+    private static final class Step {
+        final Edge edge;
+        final boolean fromMultiThreaded;
+
+        Step(Edge edge, boolean fromMultiThreaded) {
+            this.edge = edge;
+            this.fromMultiThreaded = fromMultiThreaded;
+        }
+    }
+
+    /**
+     * The nodes, by lock object, striped by the identity hash code of the lock;
+     * each map is protected by itself
+     */
+    private final MyWeakKeyIdentityHashMap<Object, Node>[] nodes;
+
+    /**
+     * The reported cycles, as sets of lock sites; protected by itself
+     */
+    private final Set<Set<String>> reportedCycles = new HashSet<Set<String>>();
+
+    @SuppressWarnings("unchecked")
+    LockGraph() {
+        nodes = new MyWeakKeyIdentityHashMap[NUMBER_OF_MAPS];
+        for(int i = 0; i < NUMBER_OF_MAPS; i++) {
+            nodes[i] = new MyWeakKeyIdentityHashMap<Object, Node>(8);
+        }
+    }
+
+    /**
+     * Records the acquisition of a lock. The node of a lock is only looked up once
+     * another lock is acquired while holding it.
+     * 
+     * @param context the context of the acquiring thread
+     * @param lock the acquired lock
+     * @param site the JoinPoint.StaticPart of the synchronized block
+     */
+    void onLock(ThreadContext context, Object lock, StaticPart site) {
+        LockOrderStack stack = context.lockOrderStack();
+        for(int i = 0; i < stack.depth; i++) {
+            if(stack.locks[i] == lock) {
+                //reentrant acquisition
+                stack.push(lock, stack.nodes[i], site);
+                return;
+            }
+        }
+        Node node = null;
+        if(stack.depth > 0) {
+            node = node(lock);
+            for(int i = 0; i < stack.depth; i++) {
+                if(stack.nodes[i] == null) {
+                    stack.nodes[i] = node(stack.locks[i]);
+                }
+                addEdge(stack.nodes[i], node, stack.sites[i], site, context.id);
+            }
+        }
+        stack.push(lock, node, site);
+    }
+
+    /**
+     * Records the release of the most recently acquired lock.
+     */
+    void onUnlock(ThreadContext context) {
+        context.lockOrderStack().pop();
+    }
+
+    private Node node(Object lock) {
+        MyWeakKeyIdentityHashMap<Object, Node> localNodes = nodes[System.identityHashCode(lock) % NUMBER_OF_MAPS];
+        synchronized(localNodes) {
+            Node node;
+            if((node = localNodes.get(lock)) == null) {
+                localNodes.put(lock, node = new Node(lock));
+            }
+            return node;
+        }
+    }
+
+    private void addEdge(Node from, Node to, StaticPart fromSite, StaticPart toSite, int threadId) {
+        Edge edge;
+        if((edge = from.successors.get(to)) == null) {
+            Edge newEdge;
+            if((edge = from.successors.putIfAbsent(to, newEdge = new Edge(from, to, fromSite, toSite, threadId))) == null) {
+                int size = from.successors.size();
+                if(size >= 16 && (size & (size - 1)) == 0) {
+                    //the held lock outlives many others: drop the edges to the collected ones
+                    removeCollected(from);
+                }
+                findCycle(newEdge);
+            }
+        }
+        else if(!edge.multiThreaded && edge.threadId != threadId) {
+            //a cycle through this edge may have been ignored because all its edges came from one thread
+            edge.multiThreaded = true;
+            findCycle(edge);
+        }
+    }
+
+    private static void removeCollected(Node node) {
+        for(Iterator<Node> i = node.successors.keySet().iterator(); i.hasNext(); ) {
+            if(i.next().isCollected()) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Searches a path from the target of the new edge back to its source, i.e. a
+     * cycle through the new edge, that involves more than one thread.
+     * Each node is visited at most twice by the depth-first search: once by paths whose
+     * edges all come from the thread of the new edge, and once by paths that involve
+     * another thread. So a single-threaded cycle does not hide a multi-threaded one
+     * through the same nodes.
+     */
+    private void findCycle(Edge newEdge) {
+        List<Map<Node, Step>> reachedBy = new ArrayList<Map<Node, Step>>(2);
+        reachedBy.add(new IdentityHashMap<Node, Step>());
+        reachedBy.add(new IdentityHashMap<Node, Step>());
+        List<Node> nodeStack = new ArrayList<Node>();
+        List<Boolean> flagStack = new ArrayList<Boolean>();
+        boolean start = newEdge.multiThreaded;
+        reachedBy.get(start ? 1 : 0).put(newEdge.to, new Step(newEdge, false));
+        nodeStack.add(newEdge.to);
+        flagStack.add(start);
+        while(!nodeStack.isEmpty()) {
+            Node node = nodeStack.remove(nodeStack.size() - 1);
+            boolean multiThreaded = flagStack.remove(flagStack.size() - 1);
+            for(Edge edge : node.successors.values()) {
+                if(edge.to.isCollected()) {
+                    node.successors.remove(edge.to, edge);
+                    continue;
+                }
+                boolean reached = multiThreaded || edge.multiThreaded || edge.threadId != newEdge.threadId;
+                Map<Node, Step> visited = reachedBy.get(reached ? 1 : 0);
+                if(visited.containsKey(edge.to)) {
+                    continue;
+                }
+                visited.put(edge.to, new Step(edge, multiThreaded));
+                if(edge.to == newEdge.from && reached) {
+                    onCycle(newEdge, reachedBy);
+                    return;
+                }
+                if(edge.to != newEdge.from) {
+                    nodeStack.add(edge.to);
+                    flagStack.add(reached);
+                }
+            }
+        }
+    }
+
+    private void onCycle(Edge newEdge, List<Map<Node, Step>> reachedBy) {
+        //walk back from the source of the new edge to collect the cycle
+        List<Edge> cycle = new ArrayList<Edge>();
+        Step step = reachedBy.get(1).get(newEdge.from);
+        while(step.edge != newEdge) {
+            cycle.add(0, step.edge);
+            step = reachedBy.get(step.fromMultiThreaded ? 1 : 0).get(step.edge.from);
+        }
+        cycle.add(0, newEdge);
+
+        Set<String> cycleSites = new HashSet<String>();
+        for(Edge e : cycle) {
+            cycleSites.add(e.sites());
+        }
+        synchronized(reportedCycles) {
+            if(!reportedCycles.add(cycleSites)) {
+                return;
+            }
+        }
+        report(cycle);
+    }
+
+    private static void report(List<Edge> cycle) {
+        String report = "==========================\nPotential deadlock found!\nLocks are acquired in a cyclic order:";
+        for(Edge edge : cycle) {
+            report += "\nLOCK: " + edge.to + " at " + edge.toSite.getSourceLocation()
+                + " while holding " + edge.from + " locked at " + edge.fromSite.getSourceLocation()
+                + (edge.multiThreaded ? " (several threads)" : " (thread #" + edge.threadId + ")");
+        }
+        System.err.println(report + "\n==========================\n");
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * The per-thread stack of the LockGraph: the held locks together with the
+ * site where they were acquired and their graph node, which is looked up lazily.
+ * Instances are confined to a single thread.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class LockOrderStack {
+    private static final int INITIAL_STACK_SIZE = 4;
+
+    /**
+     * Only the first "depth" elements are used
+     */
+    Object[] locks = new Object[INITIAL_STACK_SIZE];
+    LockGraph.Node[] nodes = new LockGraph.Node[INITIAL_STACK_SIZE];
+    StaticPart[] sites = new StaticPart[INITIAL_STACK_SIZE];
+    int depth;
+
+    void push(Object lock, LockGraph.Node node, StaticPart site) {
+        if(depth == locks.length) {
+            Object[] newLocks = new Object[depth * 2];
+            LockGraph.Node[] newNodes = new LockGraph.Node[depth * 2];
+            StaticPart[] newSites = new StaticPart[depth * 2];
+            System.arraycopy(locks, 0, newLocks, 0, depth);
+            System.arraycopy(nodes, 0, newNodes, 0, depth);
+            System.arraycopy(sites, 0, newSites, 0, depth);
+            locks = newLocks;
+            nodes = newNodes;
+            sites = newSites;
+        }
+        locks[depth] = lock;
+        sites[depth] = site;
+        nodes[depth++] = node;
+    }
+
+    void pop() {
+        locks[--depth] = null;
+        nodes[depth] = null;
+        sites[depth] = null;
+    }
+}
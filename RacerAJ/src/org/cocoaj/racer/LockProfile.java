@@ -0,0 +1,157 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * The per-thread accumulator of the LockProfiler.
+ * Hold times are accumulated under the uncontended monitor of the profile and
+ * merged into the global statistics every {@link #FLUSH_EVENTS} releases or every
+ * {@link #FLUSH_INTERVAL_NANOS} nanoseconds, whatever comes first.
+ * Instances are registered with the LockProfiler, which drains the profiles of
+ * terminated threads, and all profiles before reporting. Only the lock stack
+ * is confined to the thread.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class LockProfile {
+    private static final int FLUSH_EVENTS = 1024;
+    private static final long FLUSH_INTERVAL_NANOS = 100000000L;
+    private static final int INITIAL_STACK_SIZE = 4;
+
+    /**
+     * Stack of the held locks together with the site and the time of their acquisition.
+     * Only the first "depth" elements are used.
+     */
+    private Object[] locks = new Object[INITIAL_STACK_SIZE];
+    private StaticPart[] sites = new StaticPart[INITIAL_STACK_SIZE];
+    private long[] acquired = new long[INITIAL_STACK_SIZE];
+    private int depth;
+
+    /**
+     * Statistics accumulated since the last flush, protected by this profile
+     */
+    private Map<Object, LockStats> lockToStats = new IdentityHashMap<Object, LockStats>();
+    private Map<StaticPart, LockStats> siteToStats = new HashMap<StaticPart, LockStats>();
+    private int pendingEvents;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * The thread of this profile; only weakly referenced, so that the registry of
+     * profiles does not keep terminated threads alive
+     */
+    private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+
+    /**
+     * Creates the profile of the current thread.
+     */
+    LockProfile() {
+        LockProfiler.register(this);
+    }
+
+    /**
+     * Records the acquisition of a monitor.
+     * 
+     * @param lock the monitor
+     * @param site the JoinPoint.StaticPart of the synchronized block
+     */
+    void onLock(Object lock, StaticPart site) {
+        if(depth == locks.length) {
+            int newSize = depth * 2;
+            Object[] newLocks = new Object[newSize];
+            StaticPart[] newSites = new StaticPart[newSize];
+            long[] newAcquired = new long[newSize];
+            System.arraycopy(locks, 0, newLocks, 0, depth);
+            System.arraycopy(sites, 0, newSites, 0, depth);
+            System.arraycopy(acquired, 0, newAcquired, 0, depth);
+            locks = newLocks;
+            sites = newSites;
+            acquired = newAcquired;
+        }
+        locks[depth] = lock;
+        sites[depth] = site;
+        acquired[depth++] = System.nanoTime();
+    }
+
+    /**
+     * Records the release of the most recently acquired monitor.
+     */
+    void onUnlock() {
+        long now = System.nanoTime();
+        long held = now - acquired[--depth];
+        Object lock = locks[depth];
+        StaticPart site = sites[depth];
+        locks[depth] = null;
+        sites[depth] = null;
+
+        boolean flush;
+        synchronized(this) {
+            LockStats stats;
+            if((stats = lockToStats.get(lock)) == null) {
+                lockToStats.put(lock, stats = new LockStats(LockProfiler.describe(lock)));
+            }
+            stats.add(held);
+            if((stats = siteToStats.get(site)) == null) {
+                siteToStats.put(site, stats = new LockStats(String.valueOf(site.getSourceLocation())));
+            }
+            stats.add(held);
+            flush = ++pendingEvents >= FLUSH_EVENTS || now - lastFlush >= FLUSH_INTERVAL_NANOS;
+        }
+        if(flush) {
+            drain();
+        }
+    }
+
+    /**
+     * Forgets the held monitors, whose release is not recorded anymore.
+     */
+    void clearStack() {
+        while(depth > 0) {
+            locks[--depth] = null;
+            sites[depth] = null;
+        }
+    }
+
+    /**
+     * Merges the statistics accumulated since the last flush into the global statistics.
+     * The monitor of the profile is not held while merging, so that the LockProfiler
+     * may drain profiles while holding its own monitor.
+     */
+    void drain() {
+        Map<Object, LockStats> locks;
+        Map<StaticPart, LockStats> sites;
+        synchronized(this) {
+            if(pendingEvents == 0) {
+                return;
+            }
+            locks = lockToStats;
+            sites = siteToStats;
+            lockToStats = new IdentityHashMap<Object, LockStats>();
+            siteToStats = new HashMap<StaticPart, LockStats>();
+            pendingEvents = 0;
+            lastFlush = System.nanoTime();
+        }
+        LockProfiler.merge(locks.values(), sites.values());
+    }
+
+    /**
+     * @return true if the thread of this profile has terminated, so that the profile
+     *         does not change anymore
+     */
+    boolean isTerminated() {
+        Thread t;
+        return (t = thread.get()) == null || !t.isAlive();
+    }
+}
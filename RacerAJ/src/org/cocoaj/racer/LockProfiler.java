@@ -0,0 +1,152 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles the use of monitors, based on the lock()/unlock() advice of the Racer aspect.
+ * For every monitor and every synchronized block, it counts the acquisitions and
+ * measures the time from the request of the monitor to its release (which includes
+ * the time spent waiting for a contended monitor).
+ * Each thread accumulates its measurements in its own LockProfile, which is
+ * merged periodically into the global statistics kept by this class, and
+ * once more when the thread has terminated or the report is printed.
+ * When enabled, the hottest and longest-held monitors are reported at shutdown.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class LockProfiler {
+    /**
+     * True if the lock profiler is enabled
+     */
+    public static final boolean ENABLED = !System.getProperty("RACER_PROFILE_LOCKS","false").equals("false");
+
+    /**
+     * The number of entries per ranking in the report
+     */
+    private static final int REPORT_SIZE = 10;
+
+    /**
+     * Global statistics, protected by the LockProfiler class.
+     * Monitors are identified by their description, so that the profiler does not
+     * keep them alive.
+     */
+    private static final Map<String, LockStats> lockToStats = new HashMap<String, LockStats>();
+    private static final Map<String, LockStats> siteToStats = new HashMap<String, LockStats>();
+
+    /**
+     * The profiles that may hold measurements not merged yet, protected by the LockProfiler class.
+     * The profiles of terminated threads are drained and dropped whenever the list doubled.
+     */
+    private static final List<LockProfile> profiles = new ArrayList<LockProfile>();
+    private static int pruneThreshold = 64;
+
+    static {
+        if(ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    report(System.err);
+                }
+            });
+        }
+    }
+
+    private LockProfiler() { }
+
+    /**
+     * @return the description under which the statistics of a monitor are reported
+     */
+    static String describe(Object lock) {
+        return lock.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(lock));
+    }
+
+    /**
+     * Registers the profile of a new thread.
+     */
+    static synchronized void register(LockProfile profile) {
+        if(profiles.size() >= pruneThreshold) {
+            for(Iterator<LockProfile> i = profiles.iterator(); i.hasNext(); ) {
+                LockProfile terminated = i.next();
+                if(terminated.isTerminated()) {
+                    terminated.drain();
+                    i.remove();
+                }
+            }
+            pruneThreshold = Math.max(64, profiles.size() * 2);
+        }
+        profiles.add(profile);
+    }
+
+    /**
+     * Merges the statistics accumulated by a thread into the global statistics.
+     */
+    static synchronized void merge(Collection<LockStats> locks, Collection<LockStats> sites) {
+        mergeInto(lockToStats, locks);
+        mergeInto(siteToStats, sites);
+    }
+
+    private static void mergeInto(Map<String, LockStats> global, Collection<LockStats> local) {
+        for(LockStats stats : local) {
+            LockStats globalStats;
+            if((globalStats = global.get(stats.name)) == null) {
+                global.put(stats.name, globalStats = new LockStats(stats.name));
+            }
+            globalStats.add(stats);
+        }
+    }
+
+    /**
+     * Prints the monitors and synchronized blocks with the most acquisitions and
+     * with the longest total hold time. The measurements of all threads are merged
+     * first; monitors still held are not included.
+     * 
+     * @param out the stream to print to
+     */
+    public static synchronized void report(PrintStream out) {
+        for(LockProfile profile : profiles) {
+            profile.drain();
+        }
+        out.println("==========================\nMonitor profile");
+        printRanking(out, "Most acquired monitors:", lockToStats.values(), BY_ACQUISITIONS);
+        printRanking(out, "Longest held monitors:", lockToStats.values(), BY_HOLD_TIME);
+        printRanking(out, "Most executed synchronized blocks:", siteToStats.values(), BY_ACQUISITIONS);
+        printRanking(out, "Longest held synchronized blocks:", siteToStats.values(), BY_HOLD_TIME);
+        out.println("==========================\n");
+    }
+
+    private static void printRanking(PrintStream out, String title, Collection<LockStats> stats, Comparator<LockStats> order) {
+        List<LockStats> sorted = new ArrayList<LockStats>(stats);
+        Collections.sort(sorted, order);
+        out.println(title);
+        for(int i = 0; i < Math.min(REPORT_SIZE, sorted.size()); i++) {
+            out.println("  " + sorted.get(i));
+        }
+    }
+
+    private static final Comparator<LockStats> BY_ACQUISITIONS = new Comparator<LockStats>() {
+        public int compare(LockStats s1, LockStats s2) {
+            return s1.acquisitions < s2.acquisitions ? 1 : (s1.acquisitions == s2.acquisitions ? 0 : -1);
+        }
+    };
+
+    private static final Comparator<LockStats> BY_HOLD_TIME = new Comparator<LockStats>() {
+        public int compare(LockStats s1, LockStats s2) {
+            return s1.totalHoldNanos < s2.totalHoldNanos ? 1 : (s1.totalHoldNanos == s2.totalHoldNanos ? 0 : -1);
+        }
+    };
+}
@@ -0,0 +1,255 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the locksets of the OffHeapStore, so that a lockset fits into a slot as
+ * a small integer id. Sets are immutable; intersecting a set with the locks held by
+ * a thread yields the same id unless a lock was actually dropped, which is by far
+ * the most common case and does not touch the intern table.
+ * Locks are referenced weakly: a reclaimed lock cannot be held by any thread, so it
+ * is simply dropped from the sets it belongs to upon the next intersection.
+ * Known sets are looked up without locking; only new sets are interned under the
+ * monitor of this object.
+ * Ids are not recycled individually. Instead, the OffHeapStore uses a new instance
+ * for every generation of the analysis state, and each slot range refers to the
+ * instance its ids belong to, so the ids of a generation are reclaimed together with
+ * its ranges. Once all ids are in use, {@link #EXHAUSTED} is returned instead of an
+ * id, and the OffHeapStore tracks the owner on the heap.
+ *
+ * @author Danilo Ansaloni
+ */
+final class LockSets {
+    /**
+     * The number of bits of a lockset id
+     */
+    static final int ID_BITS = 24;
+
+    /**
+     * The id of the empty set
+     */
+    static final int EMPTY = 0;
+
+    /**
+     * Returned instead of an id once all ids are in use; never stored in a slot
+     */
+    static final int EXHAUSTED = (1 << ID_BITS) - 1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * A set of locks, compared by the identity of its elements.
+     * A set is either a probe, holding the locks themselves, or interned,
+     * holding weak references to them.
+     */
+    private static final class Key {
+        private final Object[] locks;
+        private final boolean interned;
+        private final int hash;
+
+        /**
+         * Creates a probe; the array is adopted if it has the given size.
+         */
+        Key(Object[] locks, int size) {
+            if(size == locks.length) {
+                this.locks = locks;
+            }
+            else {
+                this.locks = new Object[size];
+                System.arraycopy(locks, 0, this.locks, 0, size);
+            }
+            this.interned = false;
+            int h = 0;
+            for(int i = 0; i < size; i++) {
+                h += System.identityHashCode(locks[i]);
+            }
+            this.hash = h;
+        }
+
+        /**
+         * Creates the interned copy of a probe.
+         */
+        Key(Key probe) {
+            locks = new Object[probe.locks.length];
+            for(int i = 0; i < locks.length; i++) {
+                locks[i] = new WeakReference<Object>(probe.locks[i]);
+            }
+            interned = true;
+            hash = probe.hash;
+        }
+
+        int size() {
+            return locks.length;
+        }
+
+        /**
+         * @return the lock at the given index, or null if it has been reclaimed
+         */
+        Object lock(int index) {
+            return interned ? ((WeakReference<?>)locks[index]).get() : locks[index];
+        }
+
+        private boolean contains(Object lock) {
+            for(int i = 0; i < locks.length; i++) {
+                if(lock(i) == lock) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            if(other.hash != hash || other.locks.length != locks.length) {
+                return false;
+            }
+            for(int i = 0; i < locks.length; i++) {
+                Object lock;
+                if((lock = lock(i)) == null || !other.contains(lock)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The interned sets, indexed by id. Replaced when growing, so that the
+     * sets can be read without holding the lock of this object.
+     */
+    private volatile Key[] sets = new Key[INITIAL_CAPACITY];
+
+    /**
+     * The id of each interned set; only written under the monitor of this object
+     */
+    private final ConcurrentHashMap<Key, Integer> ids = new ConcurrentHashMap<Key, Integer>();
+
+    /**
+     * The number of interned sets; protected by this object
+     */
+    private int size;
+
+    LockSets() {
+        sets[EMPTY] = new Key(new Object[0], 0);
+    }
+
+    /**
+     * @param locks the stack of locks held by a thread
+     * @param depth the number of valid elements of the stack
+     * @return the id of the set of locks on the stack
+     */
+    int of(Object[] locks, int depth) {
+        if(depth == 0) {
+            return EMPTY;
+        }
+        //reentrant acquisitions push the same lock more than once
+        Object[] distinct = new Object[depth];
+        int count = 0;
+        for(int i = 0; i < depth; i++) {
+            if(!contains(distinct, count, locks[i])) {
+                distinct[count++] = locks[i];
+            }
+        }
+        return lookup(new Key(distinct, count));
+    }
+
+    /**
+     * @param id the id of a set
+     * @param locks the stack of locks held by a thread
+     * @param depth the number of valid elements of the stack
+     * @return the id of the intersection of the set with the locks on the stack
+     */
+    int intersect(int id, Object[] locks, int depth) {
+        if(id == EMPTY) {
+            return id;
+        }
+        Key set = sets[id];
+        int size = set.size();
+        Object[] retained = null;
+        int retainedSize = 0;
+        for(int i = 0; i < size; i++) {
+            Object lock = set.lock(i);
+            boolean held = lock != null && contains(locks, depth, lock);
+            if(retained == null) {
+                if(held) {
+                    continue;
+                }
+                //the first lock that is no longer held: copy the ones before it
+                retained = new Object[size];
+                for(int j = 0; j < i; j++) {
+                    Object previous;
+                    if((previous = set.lock(j)) != null) {
+                        retained[retainedSize++] = previous;
+                    }
+                }
+            }
+            else if(held) {
+                retained[retainedSize++] = lock;
+            }
+        }
+        if(retained == null) {
+            return id;
+        }
+        return retainedSize == 0 ? EMPTY : lookup(new Key(retained, retainedSize));
+    }
+
+    /**
+     * @return the id of the set, interning it if it is not known yet
+     */
+    private int lookup(Key probe) {
+        Integer id;
+        if((id = ids.get(probe)) != null) {
+            return id.intValue();
+        }
+        return intern(probe);
+    }
+
+    private synchronized int intern(Key probe) {
+        Integer id;
+        if((id = ids.get(probe)) != null) {
+            return id.intValue();
+        }
+        int next = size + 1;
+        if(next == EXHAUSTED) {
+            return EXHAUSTED;
+        }
+        Key[] localSets = sets;
+        if(next == localSets.length) {
+            Key[] newSets = new Key[next * 2];
+            System.arraycopy(localSets, 0, newSets, 0, next);
+            localSets = newSets;
+        }
+        Key set = new Key(probe);
+        localSets[next] = set;
+        //publish the set before its id can be stored into a slot
+        sets = localSets;
+        ids.put(set, Integer.valueOf(next));
+        size = next;
+        return next;
+    }
+
+    private static boolean contains(Object[] locks, int size, Object lock) {
+        for(int i = size - 1; i >= 0; i--) {
+            if(locks[i] == lock) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
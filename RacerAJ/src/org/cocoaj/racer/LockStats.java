@@ -0,0 +1,60 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * Acquisition count and hold times of a monitor or of a lock site.
+ * Instances are not thread-safe; they are either confined to a thread
+ * or protected by the LockProfiler.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class LockStats {
+    /**
+     * A description of the monitor or lock site
+     */
+    final String name;
+
+    long acquisitions;
+    long totalHoldNanos;
+    long maxHoldNanos;
+
+    LockStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a single acquisition.
+     * 
+     * @param holdNanos the time from the acquisition to the release of the monitor
+     */
+    void add(long holdNanos) {
+        acquisitions++;
+        totalHoldNanos += holdNanos;
+        if(holdNanos > maxHoldNanos) {
+            maxHoldNanos = holdNanos;
+        }
+    }
+
+    /**
+     * Adds the statistics of other to this instance.
+     */
+    void add(LockStats other) {
+        acquisitions += other.acquisitions;
+        totalHoldNanos += other.totalHoldNanos;
+        if(other.maxHoldNanos > maxHoldNanos) {
+            maxHoldNanos = other.maxHoldNanos;
+        }
+    }
+
+    public String toString() {
+        return name + ": " + acquisitions + " acquisitions, held " + (totalHoldNanos / 1000000) + " ms in total, "
+            + (maxHoldNanos / 1000) + " us at most";
+    }
+}
@@ -123,6 +123,34 @@ public final class MyList<E> {
         }
     }
 
+    /**
+     * Checks whether all elements of the list are among the first "index" elements
+     * of the "elements" array, i.e. whether retainAll would leave the list unchanged.
+     * The list is only read, so this may be called without holding the lock that
+     * protects it; concurrent calls to retainAll only unlink entries, so the check
+     * then sees the elements before or after the removal.
+     * 
+     * @param elements array of elements
+     * @param index the number of elements to consider
+     * @return true if the list is contained in the elements
+     */
+    public boolean isContainedIn(E[] elements, int index) {
+        for(Entry<E> currentEntry = firstEntry; currentEntry != null; currentEntry = currentEntry.next) {
+            boolean found = false;
+            E element = currentEntry.e;
+            for(int i = index - 1; i >= 0; i--) {
+                if(element == elements[i]) {
+                    found = true;
+                    break;
+                }
+            }
+            if(!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @return true if the list is empty, false otherwise
      */
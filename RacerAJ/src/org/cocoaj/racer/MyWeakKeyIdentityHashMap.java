@@ -110,5 +110,8 @@ public final class MyWeakKeyIdentityHashMap<K, V> {
         table = newTable;
         currentSize = newSize;
         threshold = newSize * 2 / 3;
+        if(Telemetry.ENABLED) {
+            Telemetry.onStripeResize(newSize / INCREMENT_FACTOR, newSize, size);
+        }
     }
 }
@@ -0,0 +1,483 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+import sun.misc.Unsafe;
+
+/**
+ * Keeps the lockset analysis of instance fields outside of the Java heap, for
+ * programs with so many objects that the FieldStates and their maps would burden
+ * the garbage collector.
+ * The state of each field is packed into a slot of {@link SlotAllocator#SLOT_SIZE}
+ * bytes: a 64-bit word holding the state of the FSM (as in FieldState), the compact
+ * id of the first accessing thread and the id of the lockset (see LockSets) in the
+ * locksets of its range, followed by a 64-bit history ring of the last four recorded accesses. The word is
+ * updated by compare-and-swap instead of under a monitor.
+ * The slots of an owner are contiguous and indexed by field id. Fields are numbered
+ * like the JVM lays them out, the fields of the superclasses first, so the id of a
+ * field only depends on its declaring class and can be resolved once per access site.
+ * Only the weak mapping from the owners to their slot ranges remains on the heap.
+ * Reports contain the history ring and the racing stack, but not the stacks of the
+ * accesses that made the field shared.
+ *
+ * @author Danilo Ansaloni
+ */
+final class OffHeapStore {
+    /**
+     * The capacity of the store in bytes; 0 if the store is disabled
+     */
+    private static final long CAPACITY = Long.getLong("RACER_OFF_HEAP", 0).longValue() << 20;
+
+    /**
+     * True if instance fields are tracked off the heap
+     */
+    static final boolean ENABLED = CAPACITY > 0 && checkSupported();
+
+    /**
+     * The states of the FSM, as in FieldState
+     */
+    private static final int VIRGIN = 0;
+    private static final int EXCLUSIVE = 1;
+    private static final int MODIFIED = 2;
+    private static final int SHARED = 3;
+    private static final int SHARED_MODIFIED = 4;
+    private static final int REPORTED_RACE = 5;
+    private static final String[] STATE_NAMES = { "VIRGIN", "EXCLUSIVE", "MODIFIED", "SHARED", "SHARED_MODIFIED", "REPORTED_RACE" };
+
+    /**
+     * Layout of the state word
+     */
+    private static final int STATE_BITS = 3;
+    private static final int THREAD_BITS = 20;
+    private static final int THREAD_SHIFT = STATE_BITS;
+    private static final int LOCKSET_SHIFT = STATE_BITS + THREAD_BITS;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final long THREAD_MASK = (1L << THREAD_BITS) - 1;
+    private static final long LOCKSET_MASK = (1L << LockSets.ID_BITS) - 1;
+
+    /**
+     * Layout of the entries of the history ring: the site id and a write flag.
+     * Entry 0 is unused, so sites beyond the last id are not recorded.
+     */
+    private static final int ENTRY_BITS = 16;
+    private static final int ENTRIES = 64 / ENTRY_BITS;
+    private static final int WRITE_FLAG = 1 << (ENTRY_BITS - 1);
+    private static final int MAX_SITE_ID = WRITE_FLAG - 1;
+
+    /**
+     * Marks the owners that are kept on the heap, because their class has no or
+     * too many fields or the capacity is exhausted
+     */
+    private static final SlotAllocator.Slots ON_HEAP = new SlotAllocator.Slots(null, 0, 0, null, null);
+
+    /**
+     * The slot memory; shared by all stores and cleared whenever a store is
+     * created, since the store is replaced whenever the analysis is reset
+     */
+    private static final SlotAllocator allocator = ENABLED ? new SlotAllocator(CAPACITY) : null;
+
+    private static final Unsafe UNSAFE = SlotAllocator.UNSAFE;
+
+    /**
+     * What is known about an access site.
+     */
+    private static final class FieldSite {
+        /**
+         * The index of the field in the slot range of its owner, or -1 if the
+         * field could not be resolved and is tracked on the heap
+         */
+        final int fieldId;
+
+        /**
+         * The id of the site in the history ring, or 0 if the site is not recorded
+         */
+        final int siteId;
+
+        FieldSite(int fieldId, int siteId) {
+            this.fieldId = fieldId;
+            this.siteId = siteId;
+        }
+    }
+
+    private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+        public int compare(Field f1, Field f2) {
+            return f1.getName().compareTo(f2.getName());
+        }
+    };
+
+    /**
+     * A mapping from the owners to their slot ranges, split into sub-maps for
+     * lock-striping as in AdviceExecutor
+     */
+    private final MyWeakKeyIdentityHashMap<Object, SlotAllocator.Slots>[] ownerToSlots;
+
+    private final ConcurrentHashMap<StaticPart, FieldSite> sites = new ConcurrentHashMap<StaticPart, FieldSite>();
+
+    /**
+     * The access sites by id; protected by itself
+     */
+    private final List<StaticPart> siteParts = new ArrayList<StaticPart>();
+
+    /**
+     * The number of instance fields of each class, including inherited ones
+     */
+    private final ConcurrentHashMap<Class<?>, Integer> classToFieldCount = new ConcurrentHashMap<Class<?>, Integer>();
+
+    /**
+     * The locksets of the current generation; replaced, so that the ids of older
+     * generations are reclaimed with their slot ranges. Protected by the store.
+     */
+    private LockSets lockSets = new LockSets();
+    private int lockSetsGeneration = RacerSwitch.generation;
+
+    OffHeapStore() {
+        allocator.clear();
+        ownerToSlots = new MyWeakKeyIdentityHashMap[AdviceExecutor.NUMBER_OF_MAPS];
+        for(int i = 0; i < ownerToSlots.length; i++) {
+            ownerToSlots[i] = new MyWeakKeyIdentityHashMap<Object, SlotAllocator.Slots>(8);
+        }
+        siteParts.add(null);
+    }
+
+    /**
+     * Performs the transition of the FSM of the accessed field.
+     * @param jpsp the JoinPoint.StaticPart of the access
+     * @param context the context of the accessing thread
+     * @param owner the owner of the accessed field
+     * @param read true if the field is read
+     * @return false if the field is tracked on the heap, in which case nothing happened
+     */
+    boolean access(StaticPart jpsp, ThreadContext context, Object owner, boolean read) {
+        FieldSite site = site(jpsp);
+        if(site.fieldId < 0) {
+            return false;
+        }
+        SlotAllocator.Slots slots;
+        MyWeakKeyIdentityHashMap<Object, SlotAllocator.Slots> localOwnerToSlots
+            = ownerToSlots[System.identityHashCode(owner) % AdviceExecutor.NUMBER_OF_MAPS];
+        synchronized(localOwnerToSlots) {
+            if((slots = localOwnerToSlots.get(owner)) == null) {
+                int count = fieldCount(owner.getClass());
+                if(count == 0 || count > SlotAllocator.MAX_SLOTS || (slots = allocator.allocate(owner, count, lockSets())) == null) {
+                    slots = ON_HEAP;
+                }
+                localOwnerToSlots.put(owner, slots);
+            }
+            else if(slots != ON_HEAP && slots.generation != RacerSwitch.generation) {
+                //the range of an older generation is cleared and reused in place
+                if((slots = allocator.renew(slots, lockSets())) == null) {
+                    slots = ON_HEAP;
+                }
+                localOwnerToSlots.put(owner, slots);
+            }
+        }
+        if(site.fieldId >= slots.count) {
+            return false;
+        }
+        LockSets lockSets = slots.lockSets;
+
+        long address = slots.address + (long)site.fieldId * SlotAllocator.SLOT_SIZE;
+        int t = (int)(context.id & THREAD_MASK);
+        int from;
+        int state;
+        boolean record;
+        boolean report;
+        for(;;) {
+            long word = UNSAFE.getLongVolatile(null, address);
+            state = from = (int)(word & STATE_MASK);
+            int threadId = (int)((word >>> THREAD_SHIFT) & THREAD_MASK);
+            int lockSet = (int)((word >>> LOCKSET_SHIFT) & LOCKSET_MASK);
+            record = false;
+            report = false;
+            if(state == REPORTED_RACE) {
+                return true;
+            }
+            lockSet = state == VIRGIN ? lockSets.of(context.locks(), context.depth())
+                : lockSets.intersect(lockSet, context.locks(), context.depth());
+            if(lockSet == LockSets.EXHAUSTED) {
+                //no id for the new lockset: continue with the FSMs on the heap
+                moveToHeap(owner, slots);
+                return false;
+            }
+            if(state == VIRGIN) {
+                state = read ? EXCLUSIVE : MODIFIED;
+                threadId = t;
+                record = true;
+            }
+            else {
+                boolean otherThread = threadId != t;
+                switch(state) {
+                    case EXCLUSIVE:
+                        if(read) {
+                            if(otherThread) {
+                                state = SHARED;
+                                record = true;
+                            }
+                        }
+                        else if(otherThread) {
+                            state = SHARED_MODIFIED;
+                            record = true;
+                        }
+                        else {
+                            state = MODIFIED;
+                            record = true;
+                        }
+                        break;
+                    case MODIFIED:
+                        if(otherThread) {
+                            state = SHARED_MODIFIED;
+                            record = true;
+                        }
+                        break;
+                    case SHARED:
+                        if(!read) {
+                            state = SHARED_MODIFIED;
+                            record = true;
+                        }
+                        break;
+                }
+                if(state == SHARED_MODIFIED && lockSet == LockSets.EMPTY) {
+                    state = REPORTED_RACE;
+                    report = true;
+                }
+            }
+            long newWord = state | ((long)threadId << THREAD_SHIFT) | ((long)lockSet << LOCKSET_SHIFT);
+            if(newWord == word || UNSAFE.compareAndSwapLong(null, address, word, newWord)) {
+                break;
+            }
+        }
+        if(Telemetry.ENABLED && state != from) {
+            Telemetry.onStateChange(jpsp.getSignature(), STATE_NAMES[from], STATE_NAMES[state]);
+        }
+        if(record && (state == EXCLUSIVE || state == MODIFIED)) {
+            context.perturbationPending = Perturbation.ENABLED;
+        }
+        if(record && site.siteId != 0) {
+            record(address + 8, read ? site.siteId : site.siteId | WRITE_FLAG);
+        }
+        if(report) {
+            report(jpsp, UNSAFE.getLongVolatile(null, address + 8));
+        }
+        return true;
+    }
+
+    /**
+     * Tracks an owner on the heap from now on, because the locksets of its slots
+     * ran out of ids. The states of its fields start over on the heap.
+     */
+    private void moveToHeap(Object owner, SlotAllocator.Slots slots) {
+        MyWeakKeyIdentityHashMap<Object, SlotAllocator.Slots> localOwnerToSlots
+            = ownerToSlots[System.identityHashCode(owner) % AdviceExecutor.NUMBER_OF_MAPS];
+        synchronized(localOwnerToSlots) {
+            if(localOwnerToSlots.get(owner) == slots) {
+                localOwnerToSlots.put(owner, ON_HEAP);
+            }
+        }
+    }
+
+    /**
+     * @return the locksets of the current generation
+     */
+    private synchronized LockSets lockSets() {
+        if(lockSetsGeneration != RacerSwitch.generation) {
+            lockSets = new LockSets();
+            lockSetsGeneration = RacerSwitch.generation;
+        }
+        return lockSets;
+    }
+
+    /**
+     * Adds an entry to the history ring of a slot, dropping the oldest one.
+     */
+    private static void record(long address, int entry) {
+        long ring;
+        do {
+            ring = UNSAFE.getLongVolatile(null, address);
+        } while(!UNSAFE.compareAndSwapLong(null, address, ring, (ring << ENTRY_BITS) | entry));
+    }
+
+    /**
+     * Reports a potential data-race, unless one has already been reported for the field.
+     *
+     * @param jpsp the JoinPoint.StaticPart of the racing access
+     * @param ring the history ring of the field
+     */
+    private void report(StaticPart jpsp, long ring) {
+        Signature signature = jpsp.getSignature();
+        if(!FieldState.confirmRace(signature)) {
+            return;
+        }
+        String accessHistory = "";
+        //the oldest recorded access at another site, preferably a write, pairs with the racing access
+        String racingSite = jpsp.getSourceLocation().toString();
+        String otherRead = null;
+        String otherWrite = null;
+        for(int i = ENTRIES - 1; i >= 0; i--) {
+            int entry = (int)(ring >>> (i * ENTRY_BITS)) & ((1 << ENTRY_BITS) - 1);
+            if(entry != 0) {
+                StaticPart site;
+                synchronized(siteParts) {
+                    site = siteParts.get(entry & MAX_SITE_ID);
+                }
+                String location = site.getSourceLocation().toString();
+                boolean write = (entry & WRITE_FLAG) != 0;
+                accessHistory += (write ? "\nWRITE: " : "\nREAD: ") + location;
+                if(!location.equals(racingSite)) {
+                    if(write && otherWrite == null) {
+                        otherWrite = location;
+                    }
+                    else if(!write && otherRead == null) {
+                        otherRead = location;
+                    }
+                }
+            }
+        }
+        CallStack racingStack;
+        if((racingStack = StackCache.capture(jpsp)) != null) {
+            accessHistory += "\n--------------------------\nRacing access:\n" + racingStack;
+        }
+        String report = "Unprotected access to field: " + signature.toLongString() + accessHistory;
+        System.err.println("==========================\nRace condition found!\n" + report + "\n==========================\n");
+        RaceScope.onRace(report);
+        if(Telemetry.ENABLED) {
+            Telemetry.onRace(signature, report);
+        }
+        if(RaceStore.ENABLED) {
+            RaceStore.record(signature.toLongString(), racingSite, otherWrite != null ? otherWrite : otherRead, report);
+        }
+    }
+
+    /**
+     * @return what is known about the given access site, resolving it if necessary
+     */
+    private FieldSite site(StaticPart jpsp) {
+        FieldSite site;
+        if((site = sites.get(jpsp)) == null) {
+            Signature signature = jpsp.getSignature();
+            int siteId;
+            synchronized(siteParts) {
+                if((site = sites.get(jpsp)) != null) {
+                    return site;
+                }
+                siteId = siteParts.size();
+                if(siteId <= MAX_SITE_ID) {
+                    siteParts.add(jpsp);
+                }
+                else {
+                    siteId = 0;
+                }
+                site = new FieldSite(fieldId(signature.getDeclaringType(), signature.getName()), siteId);
+                sites.put(jpsp, site);
+            }
+        }
+        return site;
+    }
+
+    /**
+     * @return the index of the named field in the slot range of an owner, or -1
+     * if the field cannot be resolved
+     */
+    private int fieldId(Class<?> type, String name) {
+        //javac may qualify an inherited field with the class it is accessed through
+        for(Class<?> c = type; c != null; c = c.getSuperclass()) {
+            Field[] fields = instanceFields(c);
+            if(fields == null) {
+                return -1;
+            }
+            for(int i = 0; i < fields.length; i++) {
+                if(fields[i].getName().equals(name)) {
+                    return fieldCount(c.getSuperclass()) + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of instance fields of the given class, including
+     * inherited ones; 0 if they cannot be determined
+     */
+    private int fieldCount(Class<?> type) {
+        if(type == null) {
+            return 0;
+        }
+        Integer count;
+        if((count = classToFieldCount.get(type)) == null) {
+            Field[] fields = instanceFields(type);
+            count = Integer.valueOf(fields == null ? 0 : fieldCount(type.getSuperclass()) + fields.length);
+            classToFieldCount.put(type, count);
+        }
+        return count.intValue();
+    }
+
+    /**
+     * @return the instance fields declared by the given class, sorted by name so
+     * that the order does not depend on reflection, or null if access is denied
+     */
+    private static Field[] instanceFields(Class<?> type) {
+        Field[] declared;
+        try {
+            declared = type.getDeclaredFields();
+        }
+        catch(SecurityException e) {
+            return null;
+        }
+        List<Field> fields = new ArrayList<Field>(declared.length);
+        for(Field field : declared) {
+            if(!Modifier.isStatic(field.getModifiers())) {
+                fields.add(field);
+            }
+        }
+        Field[] result = fields.toArray(new Field[fields.size()]);
+        Arrays.sort(result, BY_NAME);
+        return result;
+    }
+
+    /**
+     * @return true if the store can be used with the other options
+     */
+    private static boolean checkSupported() {
+        String conflict = null;
+        if(SlotAllocator.UNSAFE == null) {
+            System.err.println("OFFHEAP: disabled, sun.misc.Unsafe is not accessible");
+            return false;
+        }
+        if(HappensBefore.ENABLED) {
+            conflict = "RACER_HYBRID";
+        }
+        else if(AtomicityChecker.ENABLED) {
+            conflict = "RACER_ATOMICITY";
+        }
+        else if(SharingProfiler.ENABLED) {
+            conflict = "RACER_PROFILE_SHARING";
+        }
+        else if(OwnerState.OBJECT_GRANULARITY) {
+            conflict = "RACER_OBJECT_GRANULARITY";
+        }
+        else if(SiteKnowledge.ENABLED) {
+            conflict = "RACER_SITE_KNOWLEDGE";
+        }
+        if(conflict != null) {
+            System.err.println("OFFHEAP: disabled, not supported together with " + conflict);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+/**
+ * Keeps the time spent in the field access advice within a budget.
+ * Threads periodically report an estimate of the time they spent in the advice
+ * (see OverheadWindow). If the smoothed overhead exceeds the budget, the governor
+ * halves the fraction of analyzed accesses at the sites that cost the most time,
+ * and suspends the analysis altogether once all of them are sampled at the
+ * maximum period. If the overhead drops below half of the budget, the analysis
+ * is resumed and the sampling is relaxed again.
+ * Sites whose field has already been reported as racy are disabled, as analyzing
+ * them cannot find anything new.
+ * All adjustments are logged, and the metrics are exposed through JMX.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class OverheadGovernor implements OverheadGovernorMBean {
+    /**
+     * The overhead budget in percent; 0 disables the governor
+     */
+    public static final int BUDGET = Integer.getInteger("RACER_OVERHEAD_BUDGET", 0);
+
+    /**
+     * True if the overhead governor is enabled
+     */
+    public static final boolean ENABLED = BUDGET > 0;
+
+    /**
+     * The minimum time between two adjustments, which leaves time to measure their effect
+     */
+    private static final long ADJUST_INTERVAL_NANOS = 500000000L;
+
+    /**
+     * The weight of a new measurement in the smoothed overhead
+     */
+    private static final double SMOOTHING = 0.25;
+
+    /**
+     * The sites whose sampling is adjusted
+     */
+    private final SiteTable sites;
+
+    private volatile boolean suspended;
+
+    /**
+     * The smoothed ratio of advice time to program time, or -1 if nothing was measured yet;
+     * protected by this
+     */
+    private double overhead = -1;
+    private long lastAdjustment = System.nanoTime();
+    private volatile long adjustments;
+
+    OverheadGovernor(SiteTable sites) {
+        this.sites = sites;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.cocoaj.racer:type=OverheadGovernor"));
+        }
+        catch(Exception e) {
+            log("metrics not available through JMX: " + e);
+        }
+    }
+
+    /**
+     * Disables a site whose field has already been reported.
+     */
+    synchronized void onSettled(Site site) {
+        if(!site.disabled) {
+            site.disabled = true;
+            adjustments++;
+            log("disabled settled site " + site);
+        }
+    }
+
+    /**
+     * Called by a thread at the end of each measurement window.
+     * 
+     * @param adviceNanos the estimated time spent in the advice during the window
+     * @param elapsedNanos the duration of the window
+     */
+    synchronized void onWindow(long adviceNanos, long elapsedNanos) {
+        double sample = (double)adviceNanos / Math.max(1, elapsedNanos - adviceNanos);
+        overhead = overhead < 0 ? sample : overhead + SMOOTHING * (sample - overhead);
+
+        long now = System.nanoTime();
+        if(now - lastAdjustment < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        lastAdjustment = now;
+        double budget = BUDGET / 100.0;
+        if(overhead > budget) {
+            throttle();
+        }
+        else if(overhead < budget / 2) {
+            relax();
+        }
+    }
+
+    private void throttle() {
+        if(suspended) {
+            return;
+        }
+        //take a stable snapshot of the measured time, as sampledNanos keeps changing
+        List<Site> sorted = new ArrayList<Site>(sites.sites());
+        long total = 0;
+        for(Site site : sorted) {
+            total += site.measuredNanos = site.sampledNanos;
+            site.sampledNanos = 0;
+        }
+        Collections.sort(sorted, BY_MEASURED_NANOS);
+
+        //sample the sites that account for half of the measured time more sparsely
+        int throttled = 0;
+        Site hottest = null;
+        long covered = 0;
+        for(Site site : sorted) {
+            if(covered * 2 >= total || site.measuredNanos == 0) {
+                break;
+            }
+            covered += site.measuredNanos;
+            if(!site.disabled && site.period < Site.MAX_PERIOD) {
+                site.period *= 2;
+                throttled++;
+                if(hottest == null) {
+                    hottest = site;
+                }
+            }
+        }
+        adjustments++;
+        if(throttled > 0) {
+            log("estimated overhead " + percent(overhead) + "% exceeds the budget of " + BUDGET + "%, halved the sampling rate of "
+                + throttled + " sites (hottest: " + hottest + ", 1 out of " + hottest.period + " accesses)");
+        }
+        else {
+            suspended = true;
+            log("estimated overhead " + percent(overhead) + "% exceeds the budget of " + BUDGET + "%, suspended the analysis");
+        }
+    }
+
+    private void relax() {
+        if(suspended) {
+            suspended = false;
+            adjustments++;
+            log("estimated overhead " + percent(overhead) + "% is below the budget of " + BUDGET + "%, resumed the analysis");
+            return;
+        }
+        int relaxed = 0;
+        for(Site site : sites.sites()) {
+            if(site.period > 1) {
+                site.period /= 2;
+                relaxed++;
+            }
+        }
+        resetSampledNanos();
+        if(relaxed > 0) {
+            adjustments++;
+            log("estimated overhead " + percent(overhead) + "% is below the budget of " + BUDGET + "%, doubled the sampling rate of "
+                + relaxed + " sites");
+        }
+    }
+
+    private void resetSampledNanos() {
+        for(Site site : sites.sites()) {
+            site.sampledNanos = 0;
+        }
+    }
+
+    /**
+     * @return true if no field access is analyzed
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    public int getBudgetPercent() {
+        return BUDGET;
+    }
+
+    public synchronized double getEstimatedOverheadPercent() {
+        return overhead < 0 ? 0 : percent(overhead);
+    }
+
+    public int getSites() {
+        return sites.sites().size();
+    }
+
+    public int getSampledSites() {
+        int sampled = 0;
+        for(Site site : sites.sites()) {
+            if(!site.disabled && site.period > 1) {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+    public int getDisabledSites() {
+        int disabled = 0;
+        for(Site site : sites.sites()) {
+            if(site.disabled) {
+                disabled++;
+            }
+        }
+        return disabled;
+    }
+
+    public long getAdjustments() {
+        return adjustments;
+    }
+
+    private static double percent(double ratio) {
+        return Math.round(ratio * 1000) / 10.0;
+    }
+
+    private static void log(String message) {
+        System.err.println("GOVERNOR: " + message);
+    }
+
+    private static final Comparator<Site> BY_MEASURED_NANOS = new Comparator<Site>() {
+        public int compare(Site s1, Site s2) {
+            return s1.measuredNanos < s2.measuredNanos ? 1 : (s1.measuredNanos == s2.measuredNanos ? 0 : -1);
+        }
+    };
+}
@@ -0,0 +1,52 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * The metrics of the OverheadGovernor, exposed through JMX as
+ * "org.cocoaj.racer:type=OverheadGovernor".
+ * 
+ * @author Danilo Ansaloni
+ */
+public interface OverheadGovernorMBean {
+    /**
+     * @return the configured overhead budget, in percent of the uninstrumented execution time
+     */
+    int getBudgetPercent();
+
+    /**
+     * @return the current estimate of the overhead, in percent
+     */
+    double getEstimatedOverheadPercent();
+
+    /**
+     * @return the number of known access sites
+     */
+    int getSites();
+
+    /**
+     * @return the number of sites of which only a sample of the accesses is analyzed
+     */
+    int getSampledSites();
+
+    /**
+     * @return the number of sites that are no longer analyzed
+     */
+    int getDisabledSites();
+
+    /**
+     * @return true if the analysis of all field accesses is suspended
+     */
+    boolean isSuspended();
+
+    /**
+     * @return the number of adjustments performed so far
+     */
+    long getAdjustments();
+}
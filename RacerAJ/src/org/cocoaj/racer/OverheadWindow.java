@@ -0,0 +1,53 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * The per-thread measurements of the OverheadGovernor.
+ * A thread times one out of {@link #TIMING_PERIOD} analyzed accesses. After
+ * {@link #WINDOW_SIZE} analyzed accesses, it extrapolates the time it spent in
+ * the advice and hands it over to the governor together with the elapsed time.
+ * Instances are confined to a single thread.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class OverheadWindow {
+    private static final int TIMING_PERIOD = 64;
+    private static final int WINDOW_SIZE = 8192;
+
+    private int accesses;
+    private int timedAccesses;
+    private long timedNanos;
+    private long windowStart = System.nanoTime();
+
+    /**
+     * Counts an analyzed access.
+     * @return true if the access has to be timed
+     */
+    boolean onAccess() {
+        return ++accesses % TIMING_PERIOD == 0;
+    }
+
+    /**
+     * Records the duration of a timed access and, at the end of the window,
+     * reports the estimated overhead to the governor.
+     */
+    void onTimedAccess(long nanos, OverheadGovernor governor) {
+        timedNanos += nanos;
+        timedAccesses++;
+        if(accesses >= WINDOW_SIZE) {
+            long now = System.nanoTime();
+            governor.onWindow(timedNanos * accesses / timedAccesses, now - windowStart);
+            accesses = 0;
+            timedAccesses = 0;
+            timedNanos = 0;
+            windowStart = now;
+        }
+    }
+}
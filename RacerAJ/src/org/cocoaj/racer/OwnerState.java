@@ -0,0 +1,82 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FSMs of a single owner object, together with the per-owner data of the
+ * SharingProfiler.
+ * In object-granularity mode, all fields of the owner share a single object-level
+ * FSM until it finds a potential race. Only then the owner is refined, and the
+ * mapping from its fields to their FSMs is allocated.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class OwnerState {
+    /**
+     * True if owners start with an object-level FSM
+     */
+    static final boolean OBJECT_GRANULARITY = !System.getProperty("RACER_OBJECT_GRANULARITY","false").equals("false");
+
+    /**
+     * The object-level FSM, or null if the fields are tracked separately
+     */
+    private volatile FieldState objectState;
+
+    /**
+     * The mapping from the fields to their FSMs; allocated upon refinement
+     */
+    private volatile ConcurrentHashMap<String, FieldState> fieldToState;
+
+    /**
+     * The compact id of the thread that last wrote any field of the owner, and the
+     * signature of that field. Maintained by the SharingProfiler without
+     * synchronization, so they are only approximate.
+     */
+    int lastWriter = -1;
+    String lastWrittenField;
+
+    /**
+     * The generation of the analysis state this owner belongs to (see RacerSwitch)
+     */
+    final int generation = RacerSwitch.generation;
+
+    OwnerState() {
+        if(OBJECT_GRANULARITY) {
+            objectState = new FieldState(null);
+        }
+        else {
+            fieldToState = new ConcurrentHashMap<String, FieldState>();
+        }
+    }
+
+    /**
+     * @return the object-level FSM, or null if the fields are tracked separately
+     */
+    FieldState objectState() {
+        return objectState;
+    }
+
+    /**
+     * @return the mapping from the fields to their FSMs, refining the owner if necessary
+     */
+    ConcurrentHashMap<String, FieldState> fieldToState() {
+        ConcurrentHashMap<String, FieldState> map;
+        if((map = fieldToState) == null) {
+            synchronized(this) {
+                if((map = fieldToState) == null) {
+                    fieldToState = map = new ConcurrentHashMap<String, FieldState>();
+                }
+                objectState = null;
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Perturbs the schedule to expose races earlier. The lockset analysis only finds a
+ * race once a second thread accesses the field, which may never happen in a short run
+ * if the threads happen to run one after another. Therefore, with a given probability,
+ * a thread yields or parks for a short random time right after it confined a field
+ * (i.e. made it EXCLUSIVE or MODIFIED) and right after it released a lock, giving other
+ * threads the chance to access the same data in between.
+ * Delays are never injected while the monitor of a FieldState is held. The decisions
+ * are drawn from a random sequence per thread that nothing else consumes, seeded
+ * from {@link #SEED} and the thread id.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class Perturbation {
+    /**
+     * The probability of a delay in percent; 0 if perturbation is disabled
+     */
+    private static final int PERCENT = Math.min(100, Integer.getInteger("RACER_PERTURB", 0).intValue());
+
+    /**
+     * True if the schedule is perturbed
+     */
+    public static final boolean ENABLED = PERCENT > 0;
+
+    /**
+     * The seed of the random sequences of all threads
+     */
+    static final int SEED = Integer.getInteger("RACER_PERTURB_SEED", 0).intValue();
+
+    /**
+     * The maximal duration of a park
+     */
+    private static final long MAX_PARK_NANOS = Integer.getInteger("RACER_PERTURB_MAX_MICROS", 100).intValue() * 1000L;
+
+    private Perturbation() { }
+
+    /**
+     * Delays the current thread with the configured probability.
+     * @param context the context of the current thread
+     */
+    static void perturb(ThreadContext context) {
+        int random = context.nextPerturbationRandom();
+        if((random & 0x7fffffff) % 100 >= PERCENT) {
+            return;
+        }
+        //decide between yielding and parking with an independent part of the number
+        random = context.nextPerturbationRandom();
+        if((random & 1) == 0 || MAX_PARK_NANOS == 0) {
+            Thread.yield();
+        }
+        else {
+            LockSupport.parkNanos(((random >>> 1) % MAX_PARK_NANOS) + 1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Attributes reported races to a unit of work, such as a test.
+ * A scope is bound to the thread that begins it and is inherited by the threads
+ * that thread starts, so races found by worker threads are attributed as well.
+ * Threads that existed before the scope began, e.g. pooled threads, are not
+ * covered. Since every thread has its own scope, scopes of units of work
+ * that run in parallel do not interfere. A race on a field is reported once per
+ * scope, so a unit of work still sees the races on a field that another one
+ * running in parallel has already reported.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class RaceScope {
+    private static final InheritableThreadLocal<RaceScope> current = new InheritableThreadLocal<RaceScope>();
+
+    private final String name;
+
+    /**
+     * The scope that was current when this one began
+     */
+    private final RaceScope outer;
+
+    /**
+     * The reports of the races attributed to this scope; protected by itself
+     */
+    private final List<String> races = new ArrayList<String>();
+
+    /**
+     * The fields with a race attributed to this scope; protected by itself
+     */
+    private final Set<String> reportedFields = new HashSet<String>();
+
+    private RaceScope(String name, RaceScope outer) {
+        this.name = name;
+        this.outer = outer;
+    }
+
+    /**
+     * Begins a scope on the current thread.
+     * @param name the name of the unit of work
+     * @return the new scope
+     */
+    public static RaceScope begin(String name) {
+        RaceScope scope = new RaceScope(name, current.get());
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * Ends the given scope on the current thread, restoring the scope that was
+     * current when it began.
+     */
+    public static void end(RaceScope scope) {
+        current.set(scope.outer);
+    }
+
+    /**
+     * @return the fields with a race attributed to the scope of the current thread,
+     * or null if there is no scope
+     */
+    static Set<String> reportedFields() {
+        RaceScope scope;
+        return (scope = current.get()) == null ? null : scope.reportedFields;
+    }
+
+    /**
+     * Attributes a race to the scope of the current thread, if any.
+     * @param report the report of the race
+     */
+    static void onRace(String report) {
+        RaceScope scope;
+        if((scope = current.get()) != null) {
+            synchronized(scope.races) {
+                scope.races.add(report);
+            }
+        }
+    }
+
+    /**
+     * @return the name of the unit of work
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return the reports of the races attributed to this scope so far
+     */
+    public List<String> races() {
+        synchronized(races) {
+            return new ArrayList<String>(races);
+        }
+    }
+}
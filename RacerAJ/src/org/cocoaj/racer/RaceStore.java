@@ -0,0 +1,438 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the races reported by any number of JVMs in a directory, so that each
+ * distinct race is triaged once instead of once per log.
+ * A race is identified by its field and by a pair of access sites: the racing access
+ * and an earlier access at another site, preferably a write. Every report is appended
+ * to the log "races.log". In the background, the log is compacted into the index
+ * "races.idx", which holds each distinct race once, with the times it was first and last
+ * seen, the number of occurrences and its first report.
+ * All JVMs serialize their updates through a file lock on "races.lock", so the
+ * directory may be shared. To compact, the log is first renamed to a pending file, so
+ * that new reports go to a fresh log; the index then records the pending files it
+ * contains before they are deleted, so an interrupted compaction counts no report twice.
+ * Run this class with the directory as argument to list the distinct races.
+ *
+ * @author Danilo Ansaloni
+ */
+public final class RaceStore {
+    /**
+     * The directory of the store, or null
+     */
+    private static final String DIRECTORY = System.getProperty("RACER_REPORT_STORE");
+
+    /**
+     * True if races are recorded in a store
+     */
+    static final boolean ENABLED = DIRECTORY != null;
+
+    private static final long COMPACTION_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final String LOG = "races.log";
+    private static final String INDEX = "races.idx";
+    private static final String LOCK = "races.lock";
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final String INDEX_HEADER = "racer-races 1";
+    private static final String MERGED = "merged";
+
+    /**
+     * The store of this JVM, or null
+     */
+    private static final RaceStore store = ENABLED ? open(new File(DIRECTORY)) : null;
+
+    /**
+     * A distinct race.
+     */
+    private static final class Race {
+        final String field;
+        final String siteA;
+        final String siteB;
+        long firstSeen;
+        long lastSeen;
+        long count;
+        final String report;
+
+        Race(String field, String siteA, String siteB, long firstSeen, long lastSeen, long count, String report) {
+            this.field = field;
+            this.siteA = siteA;
+            this.siteB = siteB;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.count = count;
+            this.report = report;
+        }
+
+        String key() {
+            return field + '\t' + siteA + '\t' + siteB;
+        }
+    }
+
+    private final File directory;
+
+    /**
+     * The file all JVMs lock to update the store; only used while holding the lock of this object
+     */
+    private final RandomAccessFile lockFile;
+
+    private RaceStore(File directory) throws IOException {
+        this.directory = directory;
+        directory.mkdirs();
+        lockFile = new RandomAccessFile(new File(directory, LOCK), "rw");
+    }
+
+    private static RaceStore open(File directory) {
+        final RaceStore store;
+        try {
+            store = new RaceStore(directory);
+        }
+        catch(IOException e) {
+            System.err.println("STORE: disabled, cannot open " + directory + ": " + e);
+            return null;
+        }
+        Thread compactor = new Thread("Racer report store") {
+            public void run() {
+                while(true) {
+                    try {
+                        Thread.sleep(COMPACTION_INTERVAL_MILLIS);
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        store.compact();
+                    }
+                    catch(IOException e) {
+                        System.err.println("STORE: compaction failed: " + e);
+                    }
+                }
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+        return store;
+    }
+
+    /**
+     * Records a reported race.
+     * @param field the racy field
+     * @param racingSite the location of the racing access
+     * @param otherSite the location of an earlier access at another site, or null
+     * @param report the report, as printed
+     */
+    static void record(String field, String racingSite, String otherSite, String report) {
+        if(store == null) {
+            return;
+        }
+        if(otherSite == null) {
+            otherSite = racingSite;
+        }
+        //the order of the sites depends on the schedule
+        boolean ordered = racingSite.compareTo(otherSite) <= 0;
+        long now = System.currentTimeMillis();
+        Race race = new Race(field, ordered ? racingSite : otherSite, ordered ? otherSite : racingSite, now, now, 1, report);
+        try {
+            store.append(race);
+        }
+        catch(IOException e) {
+            System.err.println("STORE: cannot record race: " + e);
+        }
+    }
+
+    private synchronized void append(Race race) throws IOException {
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(new File(directory, LOG), true), "UTF-8");
+            try {
+                out.write(format(race));
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Merges the log into the index, if there is anything to merge.
+     */
+    synchronized void compact() throws IOException {
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            Map<String, Race> races = new LinkedHashMap<String, Race>();
+            Set<String> merged = new HashSet<String>();
+            readIndex(races, merged);
+            File log = new File(directory, LOG);
+            if(log.length() > 0) {
+                long suffix = System.currentTimeMillis();
+                File target;
+                while((target = new File(directory, LOG + "." + suffix + PENDING_SUFFIX)).exists()) {
+                    suffix++;
+                }
+                if(!log.renameTo(target)) {
+                    throw new IOException("cannot rename " + log + " to " + target);
+                }
+            }
+            List<File> pending = pendingFiles();
+            if(pending.isEmpty()) {
+                return;
+            }
+            //the index lists every pending file that still exists, whether merged
+            //now or by an earlier compaction that could not delete it
+            List<String> mergedNames = new ArrayList<String>();
+            boolean mergedNow = false;
+            for(File file : pending) {
+                if(!merged.contains(file.getName())) {
+                    readLog(file, races);
+                    mergedNow = true;
+                }
+                mergedNames.add(file.getName());
+            }
+            if(mergedNow) {
+                writeIndex(races, mergedNames);
+            }
+            for(File file : pending) {
+                if(!file.delete() && file.exists()) {
+                    System.err.println("STORE: cannot delete " + file + ", it stays listed in the index");
+                }
+            }
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return the distinct races in the store, including those that are not compacted yet
+     */
+    private synchronized List<Race> races() throws IOException {
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            Map<String, Race> races = new LinkedHashMap<String, Race>();
+            Set<String> merged = new HashSet<String>();
+            readIndex(races, merged);
+            for(File file : pendingFiles()) {
+                if(!merged.contains(file.getName())) {
+                    readLog(file, races);
+                }
+            }
+            readLog(new File(directory, LOG), races);
+            return new ArrayList<Race>(races.values());
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    private List<File> pendingFiles() {
+        List<File> pending = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                if(file.getName().startsWith(LOG) && file.getName().endsWith(PENDING_SUFFIX)) {
+                    pending.add(file);
+                }
+            }
+        }
+        return pending;
+    }
+
+    private void readIndex(Map<String, Race> races, Set<String> merged) throws IOException {
+        File index = new File(directory, INDEX);
+        if(!index.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+        try {
+            if(!INDEX_HEADER.equals(in.readLine())) {
+                throw new IOException("unknown format of " + index);
+            }
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.startsWith(MERGED + "\t")) {
+                    merged.add(line.substring(MERGED.length() + 1));
+                }
+                else {
+                    merge(races, parse(line));
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void readLog(File log, Map<String, Race> races) throws IOException {
+        if(!log.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                merge(races, parse(line));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void writeIndex(Map<String, Race> races, List<String> merged) throws IOException {
+        File index = new File(directory, INDEX);
+        File tmp = new File(directory, INDEX + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(INDEX_HEADER + "\n");
+            for(String name : merged) {
+                out.write(MERGED + "\t" + name + "\n");
+            }
+            for(Race race : races.values()) {
+                out.write(format(race));
+            }
+        }
+        finally {
+            out.close();
+        }
+        if(!tmp.renameTo(index)) {
+            //some platforms do not replace existing files
+            index.delete();
+            if(!tmp.renameTo(index)) {
+                throw new IOException("cannot rename " + tmp + " to " + index);
+            }
+        }
+    }
+
+    private static void merge(Map<String, Race> races, Race race) {
+        if(race == null) {
+            return;
+        }
+        Race known;
+        if((known = races.get(race.key())) == null) {
+            races.put(race.key(), race);
+        }
+        else {
+            known.firstSeen = Math.min(known.firstSeen, race.firstSeen);
+            known.lastSeen = Math.max(known.lastSeen, race.lastSeen);
+            known.count += race.count;
+        }
+    }
+
+    private static String format(Race race) {
+        return race.firstSeen + "\t" + race.lastSeen + "\t" + race.count + "\t" + escape(race.field) + "\t"
+            + escape(race.siteA) + "\t" + escape(race.siteB) + "\t" + escape(race.report) + "\n";
+    }
+
+    /**
+     * @return the race of a line, or null if the line is incomplete, e.g. because its JVM crashed
+     */
+    private static Race parse(String line) {
+        String[] columns = line.split("\t", -1);
+        if(columns.length != 7) {
+            return null;
+        }
+        try {
+            return new Race(unescape(columns[3]), unescape(columns[4]), unescape(columns[5]),
+                Long.parseLong(columns[0]), Long.parseLong(columns[1]), Long.parseLong(columns[2]), unescape(columns[6]));
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String s) {
+        StringBuilder unescaped = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                unescaped.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            }
+            else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Lists the distinct races of a store, most frequent first.
+     * Usage: RaceStore [-v] directory, where -v also prints the first report of each race.
+     */
+    public static void main(String[] args) throws IOException {
+        boolean verbose = args.length == 2 && args[0].equals("-v");
+        if(args.length != (verbose ? 2 : 1)) {
+            System.err.println("Usage: java org.cocoaj.racer.RaceStore [-v] <directory>");
+            System.exit(1);
+        }
+        File directory = new File(args[args.length - 1]);
+        if(!new File(directory, LOCK).exists()) {
+            System.err.println("No report store in " + directory);
+            System.exit(1);
+        }
+        List<Race> races = new RaceStore(directory).races();
+        Collections.sort(races, new Comparator<Race>() {
+            public int compare(Race a, Race b) {
+                return a.count != b.count ? (a.count > b.count ? -1 : 1) : a.key().compareTo(b.key());
+            }
+        });
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        System.out.println(races.size() + " distinct race(s)");
+        for(Race race : races) {
+            System.out.println("==========================");
+            System.out.println(race.field);
+            System.out.println("  between " + race.siteA + " and " + race.siteB);
+            System.out.println("  seen " + race.count + " time(s), first " + format.format(new Date(race.firstSeen))
+                + ", last " + format.format(new Date(race.lastSeen)));
+            if(verbose) {
+                System.out.println(race.report);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+/**
+ * Turns the analysis of the Racer aspect on and off at runtime.
+ * Every advice of the aspect first tests {@link #enabled}, so a disabled analysis
+ * only costs the read of a static field per join point, plus the maintenance of
+ * the lock stacks upon monitor acquisition and release.
+ * The switch is exposed through JMX and, if a signal file is configured, follows
+ * the existence of that file, which is polled by a daemon thread.
+ * Whenever the analysis is enabled, the aspect discards its state and starts over.
+ * In addition, the field states can be discarded cheaply by starting a new generation.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class RacerSwitch implements RacerSwitchMBean {
+    /**
+     * The signal file, or null
+     */
+    private static final String FILE = System.getProperty("RACER_SWITCH_FILE");
+
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    /**
+     * True if the analysis is active. Written after the state of the aspect has been
+     * reset, so that the advice sees the new state once it sees the flag set.
+     */
+    public static volatile boolean enabled = FILE != null ? new File(FILE).exists()
+        : System.getProperty("RACER_ENABLED","true").equals("true");
+
+    /**
+     * The generation of the analysis state. The states of fields that were created
+     * in an older generation are discarded upon their next access.
+     */
+    static volatile int generation;
+
+    /**
+     * Resets the state of the aspect; protected by the RacerSwitch class
+     */
+    private static Runnable resetHandler;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new RacerSwitch(), new ObjectName("org.cocoaj.racer:type=RacerSwitch"));
+        }
+        catch(Exception e) {
+            System.err.println("SWITCH: not available through JMX: " + e);
+        }
+        if(FILE != null) {
+            Thread poller = new Thread("Racer switch") {
+                public void run() {
+                    File file = new File(FILE);
+                    while(true) {
+                        setAnalysisEnabled(file.exists());
+                        try {
+                            Thread.sleep(POLL_INTERVAL_MILLIS);
+                        }
+                        catch(InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            poller.setDaemon(true);
+            poller.start();
+        }
+    }
+
+    private RacerSwitch() { }
+
+    /**
+     * Registers the handler that resets the state of the aspect upon enabling,
+     * and runs it right away if the analysis is already enabled.
+     */
+    static synchronized void setResetHandler(Runnable handler) {
+        resetHandler = handler;
+        if(enabled) {
+            handler.run();
+        }
+    }
+
+    /**
+     * Enables or disables the analysis.
+     */
+    public static synchronized void setAnalysisEnabled(boolean enable) {
+        if(enable == enabled) {
+            return;
+        }
+        if(enable && resetHandler != null) {
+            resetHandler.run();
+        }
+        enabled = enable;
+        System.err.println("SWITCH: analysis " + (enable ? "enabled" : "disabled"));
+    }
+
+    /**
+     * Starts a new generation of the analysis state: all fields are treated as if
+     * they had never been accessed, and races are reported again.
+     * Unlike the reset upon enabling, this does not reallocate any tables; the state
+     * of each field is replaced lazily. Locks and happens-before relations are kept.
+     */
+    public static synchronized void newGeneration() {
+        generation++;
+        FieldState.forgetReportedRaces();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enable) {
+        setAnalysisEnabled(enable);
+    }
+}
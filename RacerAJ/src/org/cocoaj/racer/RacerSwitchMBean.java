@@ -0,0 +1,27 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * The runtime switch of the Racer aspect, exposed through JMX as
+ * "org.cocoaj.racer:type=RacerSwitch".
+ * 
+ * @author Danilo Ansaloni
+ */
+public interface RacerSwitchMBean {
+    /**
+     * @return true if the analysis is active
+     */
+    boolean isEnabled();
+
+    /**
+     * Activates or deactivates the analysis. Activating it starts from a clean state.
+     */
+    void setEnabled(boolean enabled);
+}
@@ -0,0 +1,174 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The per-thread accumulator of the SharingProfiler.
+ * Counters are updated under the uncontended monitor of the profile and merged
+ * into the global statistics every {@link #FLUSH_EVENTS} accesses or every
+ * {@link #FLUSH_INTERVAL_NANOS} nanoseconds, whatever comes first.
+ * Instances are registered with the SharingProfiler, which drains the profiles of
+ * terminated threads, and all profiles before reporting.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class SharingProfile {
+    private static final int FLUSH_EVENTS = 4096;
+    private static final long FLUSH_INTERVAL_NANOS = 100000000L;
+
+    /**
+     * The clock is only read every CLOCK_EVENTS accesses
+     */
+    private static final int CLOCK_EVENTS = 64;
+
+    /**
+     * Counters accumulated since the last flush, protected by this profile
+     */
+    private Map<String, SharingStats> fieldToStats = new HashMap<String, SharingStats>();
+    private Map<Class<?>, SharingStats> classToStats = new HashMap<Class<?>, SharingStats>();
+    private Map<String, SharingStats> pairToStats = new HashMap<String, SharingStats>();
+    private int pendingEvents;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * The thread of this profile; only weakly referenced, so that the registry of
+     * profiles does not keep terminated threads alive
+     */
+    private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+
+    /**
+     * Creates the profile of the current thread.
+     */
+    SharingProfile() {
+        SharingProfiler.register(this);
+    }
+
+    /**
+     * Counts an access to a field.
+     * 
+     * @param ownerState the fields of the owner object
+     * @param state the FSM of the accessed field
+     * @param field the signature of the accessed field
+     * @param ownerClass the class of the owner object
+     * @param t the compact id of the accessing thread
+     * @param write true if the field is written
+     */
+    void onAccess(OwnerState ownerState, FieldState state, String field, Class<?> ownerClass, int t, boolean write) {
+        //a read moves the data if another thread wrote it and this thread did not read it since,
+        //a write moves it if another thread accessed it last
+        int lastAccessor = state.lastAccessor;
+        int lastWriter = state.lastWriter;
+        boolean transfer = lastAccessor != t && lastAccessor != -1 && (write || lastWriter != t && lastWriter != -1);
+        //the shared fields are only written when their value changes, so that the profiler
+        //does not move the cache lines of a field that stays with a single thread
+        if(lastAccessor != t) {
+            state.lastAccessor = t;
+        }
+        String pair = null;
+        if(write) {
+            if(lastWriter != t) {
+                state.lastWriter = t;
+            }
+            //the field itself is not shared with the thread that last wrote a neighbor:
+            //the object (and hence the cache line) moves between threads nevertheless
+            int ownerWriter = ownerState.lastWriter;
+            String neighbor = ownerState.lastWrittenField;
+            if(ownerWriter != t && ownerWriter != -1 && (lastWriter == t || lastWriter == -1) && !field.equals(neighbor)) {
+                pair = field.compareTo(neighbor) < 0 ? field + " / " + neighbor : neighbor + " / " + field;
+            }
+            if(ownerWriter != t) {
+                ownerState.lastWriter = t;
+            }
+            if(!field.equals(neighbor)) {
+                ownerState.lastWrittenField = field;
+            }
+        }
+
+        boolean flush;
+        synchronized(this) {
+            count(field, ownerClass, write, transfer, pair);
+            flush = ++pendingEvents >= FLUSH_EVENTS
+                || pendingEvents % CLOCK_EVENTS == 0 && System.nanoTime() - lastFlush >= FLUSH_INTERVAL_NANOS;
+        }
+        if(flush) {
+            drain();
+        }
+    }
+
+    /**
+     * Updates the counters of the profile.
+     * @param pair the pair of alternately written fields, or null
+     */
+    private void count(String field, Class<?> ownerClass, boolean write, boolean transfer, String pair) {
+        SharingStats fieldStats = stats(fieldToStats, field, field);
+        SharingStats classStats;
+        if((classStats = classToStats.get(ownerClass)) == null) {
+            classToStats.put(ownerClass, classStats = new SharingStats(ownerClass.getName()));
+        }
+        fieldStats.accesses++;
+        classStats.accesses++;
+        if(transfer) {
+            fieldStats.transfers++;
+            classStats.transfers++;
+        }
+        if(write) {
+            fieldStats.writes++;
+            classStats.writes++;
+        }
+        if(pair != null) {
+            stats(pairToStats, pair, pair).transfers++;
+        }
+    }
+
+    /**
+     * Merges the counters accumulated since the last flush into the global statistics.
+     * The monitor of the profile is not held while merging, so that the SharingProfiler
+     * may drain profiles while holding its own monitor.
+     */
+    void drain() {
+        Map<String, SharingStats> fields;
+        Map<Class<?>, SharingStats> classes;
+        Map<String, SharingStats> pairs;
+        synchronized(this) {
+            if(pendingEvents == 0) {
+                return;
+            }
+            fields = fieldToStats;
+            classes = classToStats;
+            pairs = pairToStats;
+            fieldToStats = new HashMap<String, SharingStats>();
+            classToStats = new HashMap<Class<?>, SharingStats>();
+            pairToStats = new HashMap<String, SharingStats>();
+            pendingEvents = 0;
+            lastFlush = System.nanoTime();
+        }
+        SharingProfiler.merge(fields.values(), classes.values(), pairs.values());
+    }
+
+    /**
+     * @return true if the thread of this profile has terminated, so that the profile
+     *         does not change anymore
+     */
+    boolean isTerminated() {
+        Thread t;
+        return (t = thread.get()) == null || !t.isAlive();
+    }
+
+    private static SharingStats stats(Map<String, SharingStats> map, String key, String name) {
+        SharingStats stats;
+        if((stats = map.get(key)) == null) {
+            map.put(key, stats = new SharingStats(name));
+        }
+        return stats;
+    }
+}
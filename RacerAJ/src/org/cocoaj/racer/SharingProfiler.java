@@ -0,0 +1,141 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles how often fields move between threads, based on the field access advice
+ * of the Racer aspect. For every field and every owner class, it counts the accesses
+ * that follow an access by another thread (the data "ping-pongs" between the threads).
+ * In addition, it counts how often different threads alternately write different
+ * fields of the same object: such pairs of fields are candidates for false sharing.
+ * Each thread accumulates its counters in its own SharingProfile, which is
+ * merged periodically into the global statistics kept by this class, and
+ * once more when the thread has terminated or the report is printed.
+ * When enabled, a ranking is reported at shutdown.
+ * 
+ * @author Danilo Ansaloni
+ */
+public final class SharingProfiler {
+    /**
+     * True if the sharing profiler is enabled
+     */
+    public static final boolean ENABLED = !System.getProperty("RACER_PROFILE_SHARING","false").equals("false");
+
+    /**
+     * The number of entries per ranking in the report
+     */
+    private static final int REPORT_SIZE = 10;
+
+    /**
+     * Global statistics, protected by the SharingProfiler class
+     */
+    private static final Map<String, SharingStats> fieldToStats = new HashMap<String, SharingStats>();
+    private static final Map<String, SharingStats> classToStats = new HashMap<String, SharingStats>();
+    private static final Map<String, SharingStats> pairToStats = new HashMap<String, SharingStats>();
+
+    /**
+     * The profiles that may hold counters not merged yet, protected by the SharingProfiler class.
+     * The profiles of terminated threads are drained and dropped whenever the list doubled.
+     */
+    private static final List<SharingProfile> profiles = new ArrayList<SharingProfile>();
+    private static int pruneThreshold = 64;
+
+    static {
+        if(ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    report(System.err);
+                }
+            });
+        }
+    }
+
+    private SharingProfiler() { }
+
+    /**
+     * Registers the profile of a new thread.
+     */
+    static synchronized void register(SharingProfile profile) {
+        if(profiles.size() >= pruneThreshold) {
+            for(Iterator<SharingProfile> i = profiles.iterator(); i.hasNext(); ) {
+                SharingProfile terminated = i.next();
+                if(terminated.isTerminated()) {
+                    terminated.drain();
+                    i.remove();
+                }
+            }
+            pruneThreshold = Math.max(64, profiles.size() * 2);
+        }
+        profiles.add(profile);
+    }
+
+    /**
+     * Merges the counters accumulated by a thread into the global statistics.
+     */
+    static synchronized void merge(Collection<SharingStats> fields, Collection<SharingStats> classes, Collection<SharingStats> pairs) {
+        mergeInto(fieldToStats, fields);
+        mergeInto(classToStats, classes);
+        mergeInto(pairToStats, pairs);
+    }
+
+    private static void mergeInto(Map<String, SharingStats> global, Collection<SharingStats> local) {
+        for(SharingStats stats : local) {
+            SharingStats globalStats;
+            if((globalStats = global.get(stats.name)) == null) {
+                global.put(stats.name, globalStats = new SharingStats(stats.name));
+            }
+            globalStats.add(stats);
+        }
+    }
+
+    /**
+     * Prints the fields and classes that move most often between threads, and
+     * the pairs of fields most likely to suffer from false sharing. The counters of
+     * all threads are merged first.
+     * 
+     * @param out the stream to print to
+     */
+    public static synchronized void report(PrintStream out) {
+        for(SharingProfile profile : profiles) {
+            profile.drain();
+        }
+        out.println("==========================\nSharing profile");
+        printRanking(out, "Fields most often moved between threads:", fieldToStats.values(), false);
+        printRanking(out, "Classes most often moved between threads:", classToStats.values(), false);
+        printRanking(out, "False sharing candidates (fields of the same object alternately written by different threads):",
+            pairToStats.values(), true);
+        out.println("==========================\n");
+    }
+
+    private static void printRanking(PrintStream out, String title, Collection<SharingStats> stats, boolean pairs) {
+        List<SharingStats> sorted = new ArrayList<SharingStats>(stats);
+        Collections.sort(sorted, BY_TRANSFERS);
+        out.println(title);
+        for(int i = 0; i < Math.min(REPORT_SIZE, sorted.size()); i++) {
+            SharingStats entry = sorted.get(i);
+            out.println("  " + (pairs ? entry.name + ": " + entry.transfers + " alternating writes" : entry.toString()));
+        }
+    }
+
+    private static final Comparator<SharingStats> BY_TRANSFERS = new Comparator<SharingStats>() {
+        public int compare(SharingStats s1, SharingStats s2) {
+            return s1.transfers < s2.transfers ? 1 : (s1.transfers == s2.transfers ? 0 : -1);
+        }
+    };
+}
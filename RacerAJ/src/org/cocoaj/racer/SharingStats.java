@@ -0,0 +1,49 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * Access counters of a field, of an owner class or of a pair of fields.
+ * Instances are not thread-safe; they are either confined to a thread
+ * or protected by the SharingProfiler.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class SharingStats {
+    /**
+     * A description of the field, class or pair of fields
+     */
+    final String name;
+
+    long accesses;
+    long writes;
+
+    /**
+     * The number of accesses by a thread other than the one that accessed
+     * the data before, i.e. the number of times the data moved between threads
+     */
+    long transfers;
+
+    SharingStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds the counters of other to this instance.
+     */
+    void add(SharingStats other) {
+        accesses += other.accesses;
+        writes += other.writes;
+        transfers += other.transfers;
+    }
+
+    public String toString() {
+        return name + ": " + transfers + " transfers between threads, " + accesses + " accesses, " + writes + " writes";
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * The instrumentation settings of a single field access site, as chosen by the
+ * OverheadGovernor and by the SiteKnowledge of previous runs, together with what
+ * was learned about the site in this run. The settings are read by every thread
+ * accessing the site but rarely written, so reading them does not cause contention.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class Site {
+    /**
+     * The maximum sampling period of a site
+     */
+    static final int MAX_PERIOD = 1024;
+
+    /**
+     * The JoinPoint.StaticPart of the access site
+     */
+    final StaticPart jpsp;
+
+    /**
+     * On average, one out of "period" accesses is analyzed; always a power of two
+     */
+    volatile int period = 1;
+
+    /**
+     * True if accesses at this site are no longer analyzed
+     */
+    volatile boolean disabled;
+
+    /**
+     * The time spent in the advice for the timed accesses at this site since
+     * the last adjustment. Only updated for timed accesses, without synchronization.
+     */
+    long sampledNanos;
+
+    /**
+     * The value of sampledNanos at the last adjustment; only used by the governor
+     */
+    long measuredNanos;
+
+    /**
+     * The id of the site, by which the threads count their accesses (see SiteCounts)
+     */
+    final int id;
+
+    /**
+     * The accesses at this site by the threads whose counts have been added up;
+     * protected by the SiteTable
+     */
+    long accesses;
+
+    /**
+     * True if an analyzed access found the field shared between threads
+     */
+    volatile boolean shared;
+
+    /**
+     * True if a race has been reported for the field accessed at this site
+     */
+    volatile boolean reported;
+
+    /**
+     * True if the site is sampled because it stayed thread-confined in previous runs
+     */
+    volatile boolean knownConfined;
+
+    Site(StaticPart jpsp, int id) {
+        this.jpsp = jpsp;
+        this.id = id;
+    }
+
+    /**
+     * @return the identity of the site that stays the same across runs
+     */
+    String key() {
+        return jpsp.getSignature().getDeclaringTypeName() + "." + jpsp.getSignature().getName() + "@" + jpsp.getSourceLocation();
+    }
+
+    /**
+     * Records the state of the field after an analyzed access at this site.
+     * @return true if the site has just been found to access a reported field
+     */
+    boolean observe(FieldState state) {
+        if(state == null) {
+            //the field is tracked off the heap (see OffHeapStore)
+            return false;
+        }
+        if(!shared && state.isShared()) {
+            shared = true;
+            if(knownConfined) {
+                //the previous runs were wrong about this site
+                knownConfined = false;
+                period = 1;
+            }
+        }
+        if(!reported && state.isReported()) {
+            reported = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param random a random number drawn by the accessing thread
+     * @return true if the current access must be analyzed
+     */
+    boolean shouldAnalyze(int random) {
+        return !disabled && (random & (period - 1)) == 0;
+    }
+
+    public String toString() {
+        return jpsp.getSignature().toShortString() + " at " + jpsp.getSourceLocation();
+    }
+}
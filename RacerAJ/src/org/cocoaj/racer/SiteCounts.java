@@ -0,0 +1,70 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * The per-thread access counts of the sites, indexed by site id, so that threads
+ * accessing the same site do not write a shared counter.
+ * Instances are registered with the SiteTable, which adds up the counts of
+ * terminated threads, and of all threads when the SiteKnowledge is saved.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class SiteCounts {
+    private static final int INITIAL_SIZE = 64;
+
+    /**
+     * The thread of these counts; only weakly referenced, so that terminated
+     * threads can be reclaimed
+     */
+    private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+
+    /**
+     * The number of accesses by site id; only written by the thread
+     */
+    private long[] counts = new long[INITIAL_SIZE];
+
+    /**
+     * Creates the counts of the current thread.
+     * @param sites the table of the counted sites
+     */
+    SiteCounts(SiteTable sites) {
+        sites.register(this);
+    }
+
+    /**
+     * Counts an access at the given site.
+     */
+    void count(Site site) {
+        int id = site.id;
+        if(id >= counts.length) {
+            long[] newCounts = new long[Math.max(id + 1, counts.length * 2)];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+        }
+        counts[id]++;
+    }
+
+    /**
+     * @return the number of accesses by site id; only exact once the thread has terminated
+     */
+    long[] counts() {
+        return counts;
+    }
+
+    /**
+     * @return true if the thread of these counts has terminated, so that they do not change anymore
+     */
+    boolean isTerminated() {
+        Thread t;
+        return (t = thread.get()) == null || !t.isAlive();
+    }
+}
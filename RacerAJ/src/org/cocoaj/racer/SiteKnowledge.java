@@ -0,0 +1,264 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What previous runs learned about the field access sites, stored in a compact file
+ * that is memory-mapped at startup and rewritten at shutdown.
+ * Sites are identified by declaring type, field name and source location, so that
+ * the knowledge stays valid as long as the code does not change.
+ * The file consists of a header (magic number and number of records), a table of
+ * record offsets sorted by key, and the records themselves (key length, UTF-8 key,
+ * flags and number of accesses). Sites are looked up by binary search, so only
+ * the pages holding the sites that are actually accessed are read.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class SiteKnowledge {
+    /**
+     * The knowledge file, or null if the knowledge is not persisted
+     */
+    static final String FILE = System.getProperty("RACER_SITE_KNOWLEDGE");
+
+    /**
+     * True if site knowledge is persisted across runs
+     */
+    static final boolean ENABLED = FILE != null;
+
+    private static final int MAGIC = 0x52534b31;
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Flags of a record
+     */
+    private static final byte CONFINED = 1;
+    private static final byte REPORTED = 2;
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private SiteKnowledge(ByteBuffer buffer) throws IOException {
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a site knowledge file");
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(4);
+    }
+
+    /**
+     * Maps the knowledge file into memory.
+     * @return the knowledge, or null if the file does not exist or cannot be read
+     */
+    static SiteKnowledge load(File file) {
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                //the mapping stays valid after the channel has been closed
+                return new SiteKnowledge(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch(IOException e) {
+            System.err.println("Cannot load site knowledge from " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the record of the site with the given key, or -1
+     */
+    int find(String key) {
+        byte[] bytes = utf8(key);
+        int low = 0;
+        int high = count - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareKey(recordAt(middle), bytes);
+            if(cmp < 0) {
+                low = middle + 1;
+            }
+            else if(cmp > 0) {
+                high = middle - 1;
+            }
+            else {
+                return recordAt(middle);
+            }
+        }
+        return -1;
+    }
+
+    boolean isConfined(int record) {
+        return (flags(record) & CONFINED) != 0;
+    }
+
+    boolean isReported(int record) {
+        return (flags(record) & REPORTED) != 0;
+    }
+
+    long accesses(int record) {
+        return buffer.getLong(record + 4 + buffer.getInt(record) + 1);
+    }
+
+    private byte flags(int record) {
+        return buffer.get(record + 4 + buffer.getInt(record));
+    }
+
+    private int recordAt(int index) {
+        return buffer.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private String keyOf(int record) {
+        byte[] bytes = new byte[buffer.getInt(record)];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(record + 4 + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Compares the key of a record with the given key, as unsigned bytes.
+     */
+    private int compareKey(int record, byte[] key) {
+        int length = buffer.getInt(record);
+        for(int i = 0; i < Math.min(length, key.length); i++) {
+            int cmp = (buffer.get(record + 4 + i) & 0xff) - (key[i] & 0xff);
+            if(cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Writes the knowledge of this run, merged with the knowledge of previous runs,
+     * to the given file. A site stays reported once it has been reported; a site is
+     * confined if it was not found shared in the latest run that accessed it. Sites
+     * with the same key, such as the read and the write of x++, form a single record.
+     * 
+     * @param file the knowledge file
+     * @param sites the sites of this run
+     * @param previous the knowledge of previous runs, or null
+     */
+    static void save(File file, SiteTable sites, SiteKnowledge previous) {
+        Map<String, long[]> records = new TreeMap<String, long[]>(UTF8_ORDER);
+        if(previous != null) {
+            for(int i = 0; i < previous.count; i++) {
+                int record = previous.recordAt(i);
+                records.put(previous.keyOf(record), new long[] { previous.flags(record), previous.accesses(record) });
+            }
+        }
+        //the read and the write site of an access such as x++ share a key:
+        //they are confined only if neither was found shared
+        sites.addUpAccesses();
+        Map<String, long[]> runRecords = new TreeMap<String, long[]>();
+        for(Site site : sites.sites()) {
+            if(site.accesses == 0) {
+                continue;
+            }
+            long[] runRecord;
+            if((runRecord = runRecords.get(site.key())) == null) {
+                runRecords.put(site.key(), runRecord = new long[] { CONFINED, 0 });
+            }
+            if(site.reported) {
+                runRecord[0] = REPORTED;
+            }
+            else if(site.shared && runRecord[0] == CONFINED) {
+                runRecord[0] = 0;
+            }
+            runRecord[1] += site.accesses;
+        }
+        for(Map.Entry<String, long[]> entry : runRecords.entrySet()) {
+            long[] runRecord = entry.getValue();
+            long[] record = records.get(entry.getKey());
+            long accesses = runRecord[1] + (record == null ? 0 : record[1]);
+            long flags = record != null && (record[0] & REPORTED) != 0 ? REPORTED : runRecord[0];
+            records.put(entry.getKey(), new long[] { flags, accesses });
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(records.size());
+                int offset = HEADER_SIZE + 4 * records.size();
+                for(String key : records.keySet()) {
+                    out.writeInt(offset);
+                    offset += 4 + utf8(key).length + 1 + 8;
+                }
+                for(Map.Entry<String, long[]> entry : records.entrySet()) {
+                    byte[] key = utf8(entry.getKey());
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeByte((int)entry.getValue()[0]);
+                    out.writeLong(entry.getValue()[1]);
+                }
+            }
+            finally {
+                out.close();
+            }
+            if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("cannot replace " + file);
+            }
+        }
+        catch(IOException e) {
+            System.err.println("Cannot save site knowledge to " + file + ": " + e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Orders strings by their UTF-8 bytes, the order used for the offset table
+     */
+    private static final Comparator<String> UTF8_ORDER = new Comparator<String>() {
+        public int compare(String s1, String s2) {
+            byte[] b1 = utf8(s1);
+            byte[] b2 = utf8(s2);
+            for(int i = 0; i < Math.min(b1.length, b2.length); i++) {
+                int cmp = (b1[i] & 0xff) - (b2[i] & 0xff);
+                if(cmp != 0) {
+                    return cmp;
+                }
+            }
+            return b1.length - b2.length;
+        }
+    };
+}
@@ -0,0 +1,161 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * The field access sites seen so far, as used by the OverheadGovernor and the
+ * SiteKnowledge. New sites are initialized from the knowledge of previous runs:
+ * sites whose field was reported are disabled (unless atomicity violations are
+ * searched), and frequently accessed sites that stayed thread-confined are only sampled.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class SiteTable {
+    /**
+     * Known thread-confined sites are only analyzed for one out of CONFINED_PERIOD accesses
+     */
+    static final int CONFINED_PERIOD = 16;
+
+    /**
+     * Known thread-confined sites with fewer accesses are still fully analyzed,
+     * since they are cheap anyway
+     */
+    static final long CONFINED_MIN_ACCESSES = 1000;
+
+    /**
+     * The known sites. StaticParts are compared by identity.
+     */
+    private final ConcurrentHashMap<StaticPart, Site> sites = new ConcurrentHashMap<StaticPart, Site>();
+
+    /**
+     * The next site id
+     */
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * The knowledge of previous runs, or null
+     */
+    private final SiteKnowledge knowledge;
+
+    /**
+     * The access counts of the threads that have not been added up yet; protected by
+     * this table. The counts of terminated threads are added up whenever the list doubled.
+     */
+    private final List<SiteCounts> counts = new ArrayList<SiteCounts>();
+    private int pruneThreshold = 64;
+
+    private SiteTable(SiteKnowledge knowledge) {
+        this.knowledge = knowledge;
+    }
+
+    /**
+     * Creates the site table, initialized from the knowledge file if configured.
+     * In that case, the knowledge file is rewritten at shutdown.
+     */
+    static SiteTable create() {
+        if(!SiteKnowledge.ENABLED) {
+            return new SiteTable(null);
+        }
+        final File file = new File(SiteKnowledge.FILE);
+        final SiteKnowledge previous = SiteKnowledge.load(file);
+        final SiteTable table = new SiteTable(previous);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                SiteKnowledge.save(file, table, previous);
+            }
+        });
+        return table;
+    }
+
+    /**
+     * @return the site of the given access, creating it if necessary
+     */
+    Site site(StaticPart jpsp) {
+        Site site;
+        if((site = sites.get(jpsp)) == null) {
+            Site newSite = new Site(jpsp, nextId.getAndIncrement());
+            if(knowledge != null) {
+                initialize(newSite);
+            }
+            if((site = sites.putIfAbsent(jpsp, newSite)) == null) {
+                site = newSite;
+            }
+        }
+        return site;
+    }
+
+    private void initialize(Site site) {
+        int record;
+        if((record = knowledge.find(site.key())) < 0) {
+            return;
+        }
+        if(knowledge.isReported(record)) {
+            site.reported = true;
+            site.disabled = !AtomicityChecker.ENABLED;
+        }
+        else if(knowledge.isConfined(record) && knowledge.accesses(record) >= CONFINED_MIN_ACCESSES) {
+            site.knownConfined = true;
+            site.period = CONFINED_PERIOD;
+        }
+    }
+
+    /**
+     * @return all sites seen so far
+     */
+    Collection<Site> sites() {
+        return sites.values();
+    }
+
+    /**
+     * Registers the access counts of a new thread.
+     */
+    synchronized void register(SiteCounts threadCounts) {
+        if(counts.size() >= pruneThreshold) {
+            for(Iterator<SiteCounts> i = counts.iterator(); i.hasNext(); ) {
+                SiteCounts terminated = i.next();
+                if(terminated.isTerminated()) {
+                    addUp(terminated);
+                    i.remove();
+                }
+            }
+            pruneThreshold = Math.max(64, counts.size() * 2);
+        }
+        counts.add(threadCounts);
+    }
+
+    /**
+     * Adds up the access counts of all threads into the sites, when the knowledge
+     * is saved at shutdown. Accesses counted later are not added up anymore.
+     */
+    synchronized void addUpAccesses() {
+        for(SiteCounts threadCounts : counts) {
+            addUp(threadCounts);
+        }
+        counts.clear();
+    }
+
+    private void addUp(SiteCounts threadCounts) {
+        long[] accesses = threadCounts.counts();
+        for(Site site : sites.values()) {
+            if(site.id < accesses.length) {
+                site.accesses += accesses[site.id];
+            }
+        }
+    }
+}
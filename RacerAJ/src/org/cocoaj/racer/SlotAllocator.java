@@ -0,0 +1,229 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import sun.misc.Unsafe;
+
+/**
+ * Allocates the slots of the OffHeapStore in memory segments outside of the Java heap.
+ * Each owner gets a contiguous range of slots, one per instance field. The range is
+ * bound to the owner by a weak reference; once the owner has been reclaimed, the
+ * reference is enqueued and the range is recycled by a later allocation of the same
+ * size, as ThreadIds does with thread ids.
+ * Segments are allocated on demand up to a fixed capacity and never returned to the
+ * operating system, so a slot address stays valid even if it is used after its range
+ * has been recycled. Such a late access can only happen for an access that was in
+ * flight while the analysis was reset (see {@link #clear()}), and then at worst
+ * disturbs the state of a single field.
+ *
+ * @author Danilo Ansaloni
+ */
+final class SlotAllocator {
+    /**
+     * The size of a slot in bytes: the packed state and the history ring
+     */
+    static final int SLOT_SIZE = 16;
+
+    /**
+     * The largest range; owners with more fields are kept on the heap
+     */
+    static final int MAX_SLOTS = 256;
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int INITIAL_FREE_CAPACITY = 16;
+
+    /**
+     * Access to memory outside of the heap, or null if it is not available
+     */
+    static final Unsafe UNSAFE = unsafe();
+
+    /**
+     * A range of slots, bound to its owner.
+     */
+    static final class Slots extends WeakReference<Object> {
+        final long address;
+        final int count;
+
+        /**
+         * The generation of the analysis state the range belongs to (see RacerSwitch)
+         */
+        final int generation = RacerSwitch.generation;
+
+        /**
+         * The locksets whose ids are stored in the slots
+         */
+        final LockSets lockSets;
+
+        Slots(Object owner, long address, int count, LockSets lockSets, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.address = address;
+            this.count = count;
+            this.lockSets = lockSets;
+        }
+    }
+
+    /**
+     * The maximal number of bytes of all segments
+     */
+    private final long capacity;
+
+    /**
+     * The segments allocated so far, and the one the next range is cut from
+     */
+    private final List<Long> segments = new ArrayList<Long>();
+    private int segmentIndex = -1;
+    private long top;
+    private long end;
+
+    /**
+     * The recycled ranges of each size
+     */
+    private final long[][] freeRanges = new long[MAX_SLOTS + 1][];
+    private final int[] freeCounts = new int[MAX_SLOTS + 1];
+
+    private final ReferenceQueue<Object> releasedRanges = new ReferenceQueue<Object>();
+
+    /**
+     * The ranges in use. Keeping the references reachable guarantees that they
+     * are enqueued when their owner is reclaimed.
+     */
+    private final Set<Slots> ranges = new HashSet<Slots>();
+
+    private boolean exhausted;
+
+    /**
+     * @param capacity the maximal number of bytes to allocate
+     */
+    SlotAllocator(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Allocates a range of zeroed slots.
+     * @param owner the owner of the fields
+     * @param count the number of slots, between 1 and {@link #MAX_SLOTS}
+     * @param lockSets the locksets whose ids are stored in the slots
+     * @return the range, or null if the capacity is exhausted
+     */
+    synchronized Slots allocate(Object owner, int count, LockSets lockSets) {
+        reclaim();
+        long address;
+        if(freeCounts[count] > 0) {
+            address = freeRanges[count][--freeCounts[count]];
+        }
+        else if((address = cut(count * SLOT_SIZE)) == 0) {
+            return null;
+        }
+        UNSAFE.setMemory(address, count * SLOT_SIZE, (byte)0);
+        Slots slots = new Slots(owner, address, count, lockSets, releasedRanges);
+        ranges.add(slots);
+        return slots;
+    }
+
+    /**
+     * Reuses the range of a live owner for a new generation of the analysis state,
+     * instead of allocating a new range while the old one stays bound to the owner.
+     * @param stale the range of an older generation
+     * @param lockSets the locksets whose ids are stored in the slots
+     * @return the zeroed range, or null if the capacity is exhausted
+     */
+    synchronized Slots renew(Slots stale, LockSets lockSets) {
+        Object owner = stale.get();
+        if(owner == null) {
+            return null;
+        }
+        if(!ranges.remove(stale)) {
+            //recycled by clear()
+            return allocate(owner, stale.count, lockSets);
+        }
+        UNSAFE.setMemory(stale.address, stale.count * SLOT_SIZE, (byte)0);
+        Slots slots = new Slots(owner, stale.address, stale.count, lockSets, releasedRanges);
+        ranges.add(slots);
+        return slots;
+    }
+
+    /**
+     * Recycles all ranges, when the analysis is reset. The segments are kept.
+     */
+    synchronized void clear() {
+        ranges.clear();
+        for(int i = 0; i < freeCounts.length; i++) {
+            freeCounts[i] = 0;
+        }
+        segmentIndex = -1;
+        top = end = 0;
+    }
+
+    /**
+     * Cuts a range from the current segment, moving on to the next one if necessary.
+     * @return the address of the range, or 0 if the capacity is exhausted
+     */
+    private long cut(int size) {
+        if(end - top < size) {
+            if(segmentIndex + 1 < segments.size()) {
+                top = segments.get(++segmentIndex).longValue();
+            }
+            else if((long)(segments.size() + 1) * SEGMENT_SIZE <= capacity) {
+                top = UNSAFE.allocateMemory(SEGMENT_SIZE);
+                segments.add(Long.valueOf(top));
+                segmentIndex++;
+            }
+            else {
+                if(!exhausted) {
+                    exhausted = true;
+                    System.err.println("OFFHEAP: capacity of " + (capacity >> 20) + " MB exhausted, tracking further objects on the heap");
+                }
+                return 0;
+            }
+            end = top + SEGMENT_SIZE;
+        }
+        long address = top;
+        top += size;
+        return address;
+    }
+
+    private void reclaim() {
+        Slots slots;
+        while((slots = (Slots)releasedRanges.poll()) != null) {
+            //ranges discarded by clear() have already been recycled
+            if(ranges.remove(slots)) {
+                int count = slots.count;
+                long[] free = freeRanges[count];
+                if(free == null) {
+                    freeRanges[count] = free = new long[INITIAL_FREE_CAPACITY];
+                }
+                else if(freeCounts[count] == free.length) {
+                    long[] newFree = new long[free.length * 2];
+                    System.arraycopy(free, 0, newFree, 0, free.length);
+                    freeRanges[count] = free = newFree;
+                }
+                free[freeCounts[count]++] = slots.address;
+            }
+        }
+    }
+
+    private static Unsafe unsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe)field.get(null);
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * Captures the calling contexts of field accesses and deduplicates them per access site.
+ * Walking the stack is expensive, therefore FieldState only captures a stack when
+ * a field becomes shared and for the access that is reported as racing; accesses
+ * in the EXCLUSIVE and MODIFIED states never get here.
+ * The cache is bounded: it remembers at most {@link #MAX_STACKS_PER_SITE} stacks for each
+ * of the {@link #MAX_SITES} most recently used sites.
+ * 
+ * @author Eric Bodden
+ */
+public final class StackCache {
+    /**
+     * The maximal number of frames captured per access; 0 disables stack capturing
+     */
+    public static final int DEPTH = Integer.getInteger("RACER_STACK_DEPTH", 8).intValue();
+
+    private static final int MAX_SITES = 1024;
+    private static final int MAX_STACKS_PER_SITE = 4;
+
+    /**
+     * Frames of classes in this package belong to the detector and are skipped
+     */
+    private static final String DETECTOR_PACKAGE = StackCache.class.getPackage().getName() + ".";
+
+    /**
+     * A mapping from an access site to the distinct stacks captured there, in LRU order.
+     * Protected by itself.
+     */
+    private static final Map<StaticPart, List<CallStack>> siteToStacks =
+        new LinkedHashMap<StaticPart, List<CallStack>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<StaticPart, List<CallStack>> eldest) {
+                return size() > MAX_SITES;
+            }
+        };
+
+    private StackCache() { }
+
+    /**
+     * Captures the calling context of the current access.
+     * 
+     * @param site the JoinPoint.StaticPart of the access
+     * @return a previously captured identical stack if there is one, a new stack
+     * otherwise, or null if stack capturing is disabled
+     */
+    static CallStack capture(StaticPart site) {
+        if(DEPTH == 0) {
+            return null;
+        }
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        int start = 0;
+        while(start < trace.length && trace[start].getClassName().startsWith(DETECTOR_PACKAGE)) {
+            start++;
+        }
+        StackTraceElement[] frames = new StackTraceElement[Math.min(DEPTH, trace.length - start)];
+        System.arraycopy(trace, start, frames, 0, frames.length);
+        CallStack stack = new CallStack(site, frames);
+
+        synchronized(siteToStacks) {
+            List<CallStack> stacks;
+            if((stacks = siteToStacks.get(site)) == null) {
+                siteToStacks.put(site, stacks = new ArrayList<CallStack>(MAX_STACKS_PER_SITE));
+            }
+            for(CallStack knownStack : stacks) {
+                if(knownStack.equals(stack)) {
+                    return knownStack;
+                }
+            }
+            if(stacks.size() < MAX_STACKS_PER_SITE) {
+                stacks.add(stack);
+            }
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Maps each class to the FSMs of its static fields.
+ * The table is copied whenever a class is added, so lookups never acquire a lock.
+ * Since classes are added rarely, this is cheaper than a concurrent map.
+ * Classes are kept alive by the table, as they are by the signatures held by
+ * their FSMs anyway. When a new generation starts, the entries stay in place and
+ * each class discards its FSMs upon its next access.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class StaticFieldTable {
+    private volatile Map<Class<?>, StaticFields> classToFields = new IdentityHashMap<Class<?>, StaticFields>();
+
+    /**
+     * @return the static fields of the given class, creating them if necessary,
+     * with the FSMs of the current generation
+     */
+    StaticFields get(Class<?> type) {
+        StaticFields fields;
+        if((fields = classToFields.get(type)) == null) {
+            fields = add(type);
+        }
+        else if(fields.generation != RacerSwitch.generation) {
+            fields.renew();
+        }
+        return fields;
+    }
+
+    private synchronized StaticFields add(Class<?> type) {
+        StaticFields fields;
+        if((fields = classToFields.get(type)) == null) {
+            Map<Class<?>, StaticFields> newClassToFields = new IdentityHashMap<Class<?>, StaticFields>(classToFields);
+            newClassToFields.put(type, fields = new StaticFields(type));
+            classToFields = newClassToFields;
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.aspectj.lang.Signature;
+
+/**
+ * The FSMs of the static fields declared by a class, in an array that is
+ * preallocated when the class is first seen and indexed by field id.
+ * Looking up the FSM of a static field therefore needs neither a weak map nor
+ * lock-striping.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class StaticFields {
+    /**
+     * The ids of the static fields, by name; never modified after construction
+     */
+    private final Map<String, Integer> nameToId = new HashMap<String, Integer>();
+
+    /**
+     * The FSM of each field, created upon the first access
+     */
+    private final AtomicReferenceArray<FieldState> states;
+
+    /**
+     * The per-owner data of the SharingProfiler for the class; null if it is disabled
+     */
+    final OwnerState ownerState = SharingProfiler.ENABLED ? new OwnerState() : null;
+
+    /**
+     * The generation of the analysis state the FSMs belong to (see RacerSwitch)
+     */
+    volatile int generation = RacerSwitch.generation;
+
+    StaticFields(Class<?> type) {
+        Field[] fields;
+        try {
+            fields = type.getDeclaredFields();
+        }
+        catch(SecurityException e) {
+            //all fields of the class take the generic path
+            fields = new Field[0];
+        }
+        for(Field field : fields) {
+            if(Modifier.isStatic(field.getModifiers())) {
+                nameToId.put(field.getName(), nameToId.size());
+            }
+        }
+        states = new AtomicReferenceArray<FieldState>(nameToId.size());
+    }
+
+    /**
+     * Discards the FSMs of an older generation.
+     */
+    synchronized void renew() {
+        int current = RacerSwitch.generation;
+        if(generation != current) {
+            for(int i = 0; i < states.length(); i++) {
+                states.set(i, null);
+            }
+            generation = current;
+        }
+    }
+
+    /**
+     * @return the id of the static field with the given name, or -1 if it is not
+     * declared by the class (e.g. an inherited field accessed through a subclass)
+     */
+    int idOf(String name) {
+        Integer id = nameToId.get(name);
+        return id == null ? -1 : id.intValue();
+    }
+
+    /**
+     * @return the FSM of the field with the given id, creating it if necessary
+     */
+    FieldState state(int id, Signature signature) {
+        FieldState state;
+        if((state = states.get(id)) == null) {
+            FieldState newState = new FieldState(signature);
+            if(states.compareAndSet(id, null, newState)) {
+                state = newState;
+            }
+            else {
+                state = states.get(id);
+            }
+        }
+        return state;
+    }
+}
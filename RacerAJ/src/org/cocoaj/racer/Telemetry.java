@@ -0,0 +1,85 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * Forwards events of the analysis to the TelemetrySink named by the system property
+ * RACER_TELEMETRY. Without a sink, every hook is guarded by the constant
+ * {@link #ENABLED}, so it costs nothing.
+ * The time spent in the advice is measured for one out of {@link #SAMPLE_PERIOD}
+ * accesses of each thread, or for the accesses timed by the OverheadGovernor if a
+ * budget is configured.
+ *
+ * @author Danilo Ansaloni
+ */
+final class Telemetry {
+    /**
+     * The sink of the events, or null
+     */
+    private static final TelemetrySink SINK = createSink(System.getProperty("RACER_TELEMETRY"));
+
+    /**
+     * True if a sink is configured
+     */
+    static final boolean ENABLED = SINK != null;
+
+    /**
+     * One out of SAMPLE_PERIOD accesses is timed; a power of two
+     */
+    private static final int SAMPLE_PERIOD = 64;
+
+    private Telemetry() { }
+
+    /**
+     * @param context the context of the accessing thread
+     * @return true if the current access is to be timed
+     */
+    static boolean sample(ThreadContext context) {
+        return (context.nextRandom() & (SAMPLE_PERIOD - 1)) == 0;
+    }
+
+    static void onAdvice(StaticPart jpsp, long nanos) {
+        SINK.adviceExecuted(jpsp, nanos);
+    }
+
+    static void onStateChange(Signature fieldSignature, String from, String to) {
+        SINK.stateChanged(fieldSignature, from, to);
+    }
+
+    static void onStripeResize(int oldCapacity, int newCapacity, int size) {
+        SINK.stripeResized(oldCapacity, newCapacity, size);
+    }
+
+    static void onRace(Signature fieldSignature, String report) {
+        SINK.raceReported(fieldSignature, report);
+    }
+
+    private static TelemetrySink createSink(String className) {
+        if(className == null) {
+            return null;
+        }
+        try {
+            return (TelemetrySink)Class.forName(className).getConstructor().newInstance();
+        }
+        catch(InvocationTargetException e) {
+            System.err.println("TELEMETRY: disabled, cannot create sink " + className + ": " + e.getCause());
+            return null;
+        }
+        catch(Throwable t) {
+            //e.g. the JFR sink on a JVM without Flight Recorder
+            System.err.println("TELEMETRY: disabled, cannot create sink " + className + ": " + t);
+            return null;
+        }
+    }
+}
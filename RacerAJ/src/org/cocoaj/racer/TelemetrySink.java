@@ -0,0 +1,54 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.JoinPoint.StaticPart;
+
+/**
+ * Receives events of the analysis, to attribute its cost to the accessed fields with
+ * external tooling. The sink is named by the system property RACER_TELEMETRY and must
+ * have a public no-argument constructor (see Telemetry). The sink in the folder "jfr"
+ * turns the events into Java Flight Recorder events.
+ * The methods are called by the threads of the program, some of them while holding the
+ * monitor of a FieldState, so they must be cheap and must not block.
+ *
+ * @author Danilo Ansaloni
+ */
+public interface TelemetrySink {
+    /**
+     * Called for a sample of the field accesses.
+     * @param jpsp the access site
+     * @param nanos the time spent in the advice for this access
+     */
+    void adviceExecuted(StaticPart jpsp, long nanos);
+
+    /**
+     * Called when the FSM of a field changes its state.
+     * @param fieldSignature the field, or null for the FSM of a whole object
+     * @param from the previous state
+     * @param to the new state
+     */
+    void stateChanged(Signature fieldSignature, String from, String to);
+
+    /**
+     * Called when a stripe of the map from owners to field states has grown.
+     * @param oldCapacity the previous number of entries the stripe could hold
+     * @param newCapacity the new number of entries the stripe can hold
+     * @param size the number of entries of the stripe, without the reclaimed ones
+     */
+    void stripeResized(int oldCapacity, int newCapacity, int size);
+
+    /**
+     * Called when a race is reported.
+     * @param fieldSignature the racy field
+     * @param report the report, as printed
+     */
+    void raceReported(Signature fieldSignature, String report);
+}
@@ -0,0 +1,256 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * The per-thread data of the Racer aspect: the compact id of the thread and
+ * the stack of locks it currently holds.
+ * The lock stack is allocated upon the first lock acquisition, so threads that
+ * never take a monitor only cost this small object.
+ * Instances are only reachable from the thread-local storage of their thread,
+ * which allows ThreadIds to recycle the id once the thread terminated. They live
+ * as long as the thread, across resets of the analysis; the per-thread analysis
+ * state is discarded when the context is first used in a new epoch.
+ *
+ * @author Danilo Ansaloni
+ * @author Eric Bodden
+ */
+public final class ThreadContext {
+    private static final Object[] NO_LOCKS = new Object[0];
+    private static final int[] NO_EPOCHS = new int[0];
+    private static final int INITIAL_STACK_SIZE = 4;
+
+    /**
+     * The compact id of the thread
+     */
+    final int id;
+
+    /**
+     * The stack of currently held locks. Only the first "depth" elements are used.
+     */
+    private Object[] locks = NO_LOCKS;
+    private int depth;
+
+    /**
+     * The epoch in which each held lock was acquired, 0 if the analysis was disabled
+     */
+    private int[] epochs = NO_EPOCHS;
+
+    /**
+     * The epoch of the Racer aspect to which the per-thread analysis state belongs
+     */
+    int epoch;
+
+    /**
+     * The lock profile of the thread; allocated lazily if the LockProfiler is enabled
+     */
+    private LockProfile lockProfile;
+
+    /**
+     * The sharing profile of the thread; allocated lazily if the SharingProfiler is enabled
+     */
+    private SharingProfile sharingProfile;
+
+    /**
+     * The overhead measurements of the thread; allocated lazily if the OverheadGovernor is enabled
+     */
+    private OverheadWindow overheadWindow;
+
+    /**
+     * The lock stack of the lock-order analysis; allocated lazily if the LockGraph is enabled
+     */
+    private LockOrderStack lockOrderStack;
+
+    /**
+     * The access counts of the sites; allocated lazily if the SiteKnowledge is enabled
+     */
+    private SiteCounts siteCounts;
+
+    /**
+     * The vector clock of the thread; only set in hybrid mode (see HappensBefore)
+     */
+    VectorClock clock;
+
+    /**
+     * State of the xorshift generator of the thread for sampling, never 0
+     */
+    private int seed;
+
+    /**
+     * State of the xorshift generator of the thread for the Perturbation, never 0.
+     * Kept apart from the sampling sequence, whose use depends on timing, so that
+     * a seed reproduces the perturbation decisions.
+     */
+    private int perturbationSeed;
+
+    /**
+     * True if the last field access confined the field to this thread, so that
+     * the schedule is to be perturbed once the access has been analyzed
+     */
+    boolean perturbationPending;
+
+    /**
+     * Creates the context of the current thread.
+     * @param threadIds the allocator of thread ids
+     */
+    ThreadContext(ThreadIds threadIds) {
+        id = threadIds.acquire(this);
+        seed = (id + 1) * 0x9E3779B9;
+        if(seed == 0) {
+            seed = 1;
+        }
+        perturbationSeed = ((id + 1) * 0x85EBCA6B) ^ Perturbation.SEED;
+        if(perturbationSeed == 0) {
+            perturbationSeed = 1;
+        }
+    }
+
+    /**
+     * Pushes a lock on the stack of held locks.
+     * @param lock the acquired lock
+     * @param epoch the current epoch of the aspect, or 0 if the analysis is disabled
+     */
+    void push(Object lock, int epoch) {
+        if(depth == locks.length) {
+            int newSize = Math.max(INITIAL_STACK_SIZE, depth * 2);
+            Object[] newLocks = new Object[newSize];
+            int[] newEpochs = new int[newSize];
+            System.arraycopy(locks, 0, newLocks, 0, depth);
+            System.arraycopy(epochs, 0, newEpochs, 0, depth);
+            locks = newLocks;
+            epochs = newEpochs;
+        }
+        epochs[depth] = epoch;
+        locks[depth++] = lock;
+    }
+
+    /**
+     * Pops the most recently acquired lock from the stack of held locks.
+     * @param lock the released lock
+     * @return the epoch in which the lock was acquired, or -1 if the lock is not on
+     *         top of the stack; the stack is left unchanged then
+     */
+    int pop(Object lock) {
+        if(depth == 0 || locks[depth - 1] != lock) {
+            return -1;
+        }
+        locks[--depth] = null;
+        return epochs[depth];
+    }
+
+    /**
+     * Discards the per-thread analysis state of an older epoch. The held locks are
+     * kept, but the analysis does not see their release.
+     * @param epoch the current epoch of the aspect
+     */
+    void startEpoch(int epoch) {
+        this.epoch = epoch;
+        lockOrderStack = null;
+        clock = null;
+        perturbationPending = false;
+        if(lockProfile != null) {
+            lockProfile.clearStack();
+        }
+    }
+
+    /**
+     * @return the next number of the pseudo-random sequence of the thread,
+     *         used to sample accesses without shared counters
+     */
+    int nextRandom() {
+        return seed = xorshift(seed);
+    }
+
+    /**
+     * @return the next number of the pseudo-random sequence of the Perturbation for
+     *         the thread, which only depends on the seed of the Perturbation and the thread id
+     */
+    int nextPerturbationRandom() {
+        return perturbationSeed = xorshift(perturbationSeed);
+    }
+
+    private static int xorshift(int x) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return x;
+    }
+
+    /**
+     * @return the compact id of the thread
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * @return the stack of held locks; only the first {@link #depth()} elements are valid
+     */
+    Object[] locks() {
+        return locks;
+    }
+
+    /**
+     * @return the number of held locks
+     */
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * @return the lock profile of the thread, allocating it if necessary
+     */
+    LockProfile lockProfile() {
+        if(lockProfile == null) {
+            lockProfile = new LockProfile();
+        }
+        return lockProfile;
+    }
+
+    /**
+     * @return the sharing profile of the thread, allocating it if necessary
+     */
+    SharingProfile sharingProfile() {
+        if(sharingProfile == null) {
+            sharingProfile = new SharingProfile();
+        }
+        return sharingProfile;
+    }
+
+    /**
+     * @return the overhead measurements of the thread, allocating them if necessary
+     */
+    OverheadWindow overheadWindow() {
+        if(overheadWindow == null) {
+            overheadWindow = new OverheadWindow();
+        }
+        return overheadWindow;
+    }
+
+    /**
+     * @param sites the table of the counted sites
+     * @return the access counts of the sites, allocating them if necessary
+     */
+    SiteCounts siteCounts(SiteTable sites) {
+        if(siteCounts == null) {
+            siteCounts = new SiteCounts(sites);
+        }
+        return siteCounts;
+    }
+
+    /**
+     * @return the lock stack of the lock-order analysis, allocating it if necessary
+     */
+    LockOrderStack lockOrderStack() {
+        if(lockOrderStack == null) {
+            lockOrderStack = new LockOrderStack();
+        }
+        return lockOrderStack;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ *
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Allocates compact integer ids to threads, so that the detector never needs
+ * to keep references to Thread objects.
+ * Each id is bound to a per-thread object that is only reachable from the
+ * thread-local storage of its thread (e.g. a {@link ThreadContext}). Once the thread
+ * terminates, its thread-locals are discarded, the object is reclaimed by the GC
+ * and its id is recycled by a later call to {@link #acquire(Object)}.
+ * This keeps the ids dense even if millions of short-lived threads are created.
+ * As for MyWeakKeyIdentityHashMap, released ids are collected upon allocation,
+ * which avoids the necessity of an external thread.
+ *
+ * @author Danilo Ansaloni
+ * @author Eric Bodden
+ */
+public final class ThreadIds {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * A weak reference to a per-thread object that remembers the id bound to it.
+     */
+    private static final class IdReference extends WeakReference<Object> {
+        final int id;
+
+        IdReference(Object referent, int id, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.id = id;
+        }
+    }
+
+    private final ReferenceQueue<Object> releasedIds = new ReferenceQueue<Object>();
+
+    /**
+     * The reference for each id in use. Keeping the references reachable
+     * guarantees that they are enqueued when their referent is reclaimed.
+     */
+    private IdReference[] references = new IdReference[INITIAL_CAPACITY];
+
+    /**
+     * Stack of ids that can be recycled.
+     */
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    /**
+     * The lowest id that has never been allocated.
+     */
+    private int nextId;
+
+    /**
+     * Allocates an id for the current thread.
+     * @param threadLocalValue an object that is only reachable through a
+     *        thread-local of the current thread; the id is released once it has been reclaimed
+     * @return a recently released id, or a fresh one
+     */
+    public synchronized int acquire(Object threadLocalValue) {
+        reclaim();
+        int id;
+        if(freeCount > 0) {
+            id = freeIds[--freeCount];
+        }
+        else {
+            id = nextId++;
+            if(id == references.length) {
+                IdReference[] newReferences = new IdReference[id * 2];
+                System.arraycopy(references, 0, newReferences, 0, id);
+                references = newReferences;
+            }
+        }
+        references[id] = new IdReference(threadLocalValue, id, releasedIds);
+        return id;
+    }
+
+    /**
+     * @return an upper bound (exclusive) of all ids allocated so far
+     */
+    public synchronized int bound() {
+        return nextId;
+    }
+
+    private void reclaim() {
+        IdReference reference;
+        while((reference = (IdReference)releasedIds.poll()) != null) {
+            references[reference.id] = null;
+            if(freeCount == freeIds.length) {
+                int[] newFreeIds = new int[freeCount * 2];
+                System.arraycopy(freeIds, 0, newFreeIds, 0, freeCount);
+                freeIds = newFreeIds;
+            }
+            freeIds[freeCount++] = reference.id;
+        }
+    }
+}
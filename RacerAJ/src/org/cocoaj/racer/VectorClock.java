@@ -0,0 +1,92 @@
+/*
+ * This code is made available under version 3 of the
+ * GNU GENERAL PUBLIC LICENSE. See the file LICENSE in this
+ * distribution for details.
+ * 
+ * Copyright 2008-2010 Danilo Ansaloni, Walter Binder, Eric Bodden
+ */
+
+package org.cocoaj.racer;
+
+/**
+ * A vector clock indexed by compact thread ids. Missing entries are 0.
+ * Instances are not thread-safe; the clock of a thread is only modified by
+ * that thread, and the clocks of locks are protected by their own monitor.
+ * 
+ * @author Danilo Ansaloni
+ */
+final class VectorClock {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] values = EMPTY;
+
+    int get(int t) {
+        return t < values.length ? values[t] : 0;
+    }
+
+    void set(int t, int value) {
+        ensureCapacity(t + 1);
+        values[t] = value;
+    }
+
+    /**
+     * Increments the entry of the given thread.
+     */
+    void tick(int t) {
+        set(t, get(t) + 1);
+    }
+
+    /**
+     * Sets every entry to the maximum of this and the other clock.
+     */
+    void join(VectorClock other) {
+        int[] otherValues = other.values;
+        ensureCapacity(otherValues.length);
+        for(int i = 0; i < otherValues.length; i++) {
+            if(otherValues[i] > values[i]) {
+                values[i] = otherValues[i];
+            }
+        }
+    }
+
+    /**
+     * Makes this clock equal to the other clock.
+     */
+    void copyFrom(VectorClock other) {
+        if(values.length < other.values.length) {
+            values = other.values.clone();
+        }
+        else {
+            System.arraycopy(other.values, 0, values, 0, other.values.length);
+            for(int i = other.values.length; i < values.length; i++) {
+                values[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * @return true if no entry of this clock is greater than the entry of the other clock
+     */
+    boolean isBefore(VectorClock other) {
+        for(int i = 0; i < values.length; i++) {
+            if(values[i] > other.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    VectorClock copy() {
+        VectorClock copy = new VectorClock();
+        copy.values = values.clone();
+        return copy;
+    }
+
+    private void ensureCapacity(int length) {
+        if(values.length < length) {
+            int[] newValues = new int[Math.max(length, values.length * 2)];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            values = newValues;
+        }
+    }
+}